@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import be.nabu.utils.security.StoreType;
+
+/**
+ * Runs the operations of a manager on an executor so the caller (e.g. an event loop) is never blocked on resource i/o or crypto.
+ * Changes to a keystore (creating, deleting and modifying it) are executed one at a time in the order they were requested, reads run concurrently.
+ */
+public class AsyncKeyStoreManager implements Closeable {
+
+	private KeyStoreManagerImpl manager;
+	private Executor executor;
+	private boolean ownsExecutor;
+	/**
+	 * The changes to each keystore are serialized per alias, a serializer is only kept while it has changes queued or running
+	 */
+	private ConcurrentMap<String, SerialExecutor> serializers = new ConcurrentHashMap<String, SerialExecutor>();
+
+	public AsyncKeyStoreManager(KeyStoreManagerImpl manager) {
+		this(manager, newExecutor());
+		this.ownsExecutor = true;
+	}
+
+	public AsyncKeyStoreManager(KeyStoreManagerImpl manager, Executor executor) {
+		this.manager = manager;
+		this.executor = executor;
+	}
+
+	/**
+	 * A virtual thread per task if the vm supports them, otherwise a pool of daemon threads
+	 */
+	public static Executor newExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) method.invoke(null);
+		}
+		catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "keystore-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Completes with null if there is no keystore with the alias
+	 */
+	public CompletableFuture<AsyncManagedKeyStore> getKeyStore(final String alias) {
+		return submit(new Callable<AsyncManagedKeyStore>() {
+			@Override
+			public AsyncManagedKeyStore call() throws Exception {
+				return wrap(manager.getKeyStore(alias));
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<AsyncManagedKeyStore> createKeyStore(final String alias, final String password, final StoreType type) {
+		return submit(new Callable<AsyncManagedKeyStore>() {
+			@Override
+			public AsyncManagedKeyStore call() throws Exception {
+				return wrap((ManagedKeyStoreImpl) manager.createKeyStore(alias, password, type));
+			}
+		}, getSerializer(alias));
+	}
+
+	public CompletableFuture<Void> deleteKeyStore(final String alias) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				manager.deleteKeyStore(alias);
+				return null;
+			}
+		}, getSerializer(alias));
+	}
+
+	/**
+	 * Writes everything that is pending in the write-behind flusher (if any)
+	 */
+	public CompletableFuture<Void> flush() {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				manager.flush();
+				return null;
+			}
+		}, executor);
+	}
+
+	/**
+	 * Shuts down the executor if we created it, an executor that was passed in is left to its owner.
+	 * Operations that are already running complete, operations requested afterwards complete exceptionally.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (ownsExecutor && executor instanceof ExecutorService)
+			((ExecutorService) executor).shutdown();
+	}
+
+	public KeyStoreManagerImpl getManager() {
+		return manager;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Every wrapper of a keystore shares the serializer of its alias, so all changes to it are ordered
+	 */
+	private AsyncManagedKeyStore wrap(ManagedKeyStoreImpl keystore) {
+		return keystore == null ? null : new AsyncManagedKeyStore(keystore, executor, getSerializer(keystore.getConfiguration().getAlias()));
+	}
+
+	/**
+	 * The serializer retires and is removed from the map once it has nothing left to do, so it is looked up again for every task
+	 */
+	private Executor getSerializer(final String alias) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				while (!getSerialExecutor(alias).offer(task)) {
+					// it retired after the lookup, the next lookup creates a new one
+				}
+			}
+		};
+	}
+
+	private SerialExecutor getSerialExecutor(final String alias) {
+		SerialExecutor serializer = serializers.get(alias);
+		if (serializer == null) {
+			SerialExecutor created = new SerialExecutor(executor) {
+				@Override
+				protected void drained() {
+					serializers.remove(alias, this);
+				}
+			};
+			serializer = serializers.putIfAbsent(alias, created);
+			if (serializer == null)
+				serializer = created;
+		}
+		return serializer;
+	}
+
+	/**
+	 * The number of aliases that currently have changes queued or running
+	 */
+	int getPendingAliases() {
+		return serializers.size();
+	}
+
+	/**
+	 * Completes the future with the result of the callable on the executor, the checked exceptions of the operations are passed on as they are
+	 */
+	static <T> CompletableFuture<T> submit(final Callable<T> callable, Executor executor) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new SerialExecutor.Rejectable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(callable.call());
+					}
+					catch (Exception e) {
+						future.completeExceptionally(e);
+					}
+					catch (Error e) {
+						future.completeExceptionally(e);
+						throw e;
+					}
+				}
+				@Override
+				public void rejected(RejectedExecutionException e) {
+					future.completeExceptionally(e);
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
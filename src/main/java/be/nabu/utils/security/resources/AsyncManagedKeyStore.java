@@ -0,0 +1,188 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.IOException;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLContext;
+
+import be.nabu.utils.security.SSLContextType;
+
+/**
+ * The operations of a managed keystore that may block on resource i/o or crypto, each returns a future that completes on the executor.
+ * Modifications are applied one at a time in the order they were requested, without tying up a thread while they wait.
+ * Reads run concurrently with each other and with the modifications, as they do on the keystore itself.
+ */
+public class AsyncManagedKeyStore {
+
+	private ManagedKeyStoreImpl keystore;
+	private Executor executor, serializer;
+
+	AsyncManagedKeyStore(ManagedKeyStoreImpl keystore, Executor executor, Executor serializer) {
+		this.keystore = keystore;
+		this.executor = executor;
+		this.serializer = serializer;
+	}
+
+	/**
+	 * The keystore itself, for the operations that don't block
+	 */
+	public ManagedKeyStoreImpl getKeyStore() {
+		return keystore;
+	}
+
+	public CompletableFuture<Void> set(final String alias, final X509Certificate certificate) {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.set(alias, certificate);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> set(final String alias, final SecretKey secretKey, final String password) {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.set(alias, secretKey, password);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> set(final String alias, final PrivateKey privateKey, final X509Certificate [] chain, final String password) {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.set(alias, privateKey, chain, password);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> rename(final String oldAlias, final String newAlias) {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.rename(oldAlias, newAlias);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> delete(final String alias) {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.delete(alias);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> save() {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.save();
+			}
+		});
+	}
+
+	/**
+	 * Applies several modifications as a single batch, see ManagedKeyStoreImpl.mutate
+	 */
+	public CompletableFuture<Void> batch(final ManagedKeyStoreImpl.Mutation mutation) {
+		return mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.mutate(mutation);
+			}
+		});
+	}
+
+	/**
+	 * Ordered with the modifications so it never reloads in between two of them
+	 */
+	public CompletableFuture<Boolean> reload() {
+		return AsyncKeyStoreManager.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return keystore.reload();
+			}
+		}, serializer);
+	}
+
+	public CompletableFuture<PrivateKey> getPrivateKey(final String alias) {
+		return AsyncKeyStoreManager.submit(new Callable<PrivateKey>() {
+			@Override
+			public PrivateKey call() throws Exception {
+				return keystore.getPrivateKey(alias);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<X509Certificate> getCertificate(final String alias) {
+		return AsyncKeyStoreManager.submit(new Callable<X509Certificate>() {
+			@Override
+			public X509Certificate call() throws Exception {
+				return keystore.getCertificate(alias);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<SecretKey> getSecretKey(final String alias) {
+		return AsyncKeyStoreManager.submit(new Callable<SecretKey>() {
+			@Override
+			public SecretKey call() throws Exception {
+				return keystore.getSecretKey(alias);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<X509Certificate []> getChain(final String alias) {
+		return AsyncKeyStoreManager.submit(new Callable<X509Certificate []>() {
+			@Override
+			public X509Certificate [] call() throws Exception {
+				return keystore.getChain(alias);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<SSLContext> newContext(final SSLContextType type) {
+		return AsyncKeyStoreManager.submit(new Callable<SSLContext>() {
+			@Override
+			public SSLContext call() throws Exception {
+				return keystore.newContext(type);
+			}
+		}, executor);
+	}
+
+	private CompletableFuture<Void> mutate(final ManagedKeyStoreImpl.Mutation mutation) {
+		return AsyncKeyStoreManager.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mutation.mutate(keystore);
+				return null;
+			}
+		}, serializer);
+	}
+}
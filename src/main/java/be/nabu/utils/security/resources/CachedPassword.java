@@ -0,0 +1,92 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import be.nabu.utils.security.EncryptionXmlAdapter;
+
+/**
+ * A password together with its encrypted form, each is only calculated when first needed and then kept.
+ * A password read from a configuration is only decrypted when it is used and a password that did not change is written back without encrypting it again.
+ */
+class CachedPassword {
+
+	private static final String ENCRYPTED = "${encrypted:";
+	
+	private volatile String plain, encrypted;
+
+	private CachedPassword() {
+		// use the factory methods
+	}
+
+	public static CachedPassword plain(String plain) {
+		if (plain == null)
+			return null;
+		CachedPassword password = new CachedPassword();
+		password.plain = plain;
+		return password;
+	}
+
+	/**
+	 * Older configurations may contain passwords that were never encrypted, those are encrypted when they are written back
+	 */
+	public static CachedPassword encrypted(String encrypted) {
+		if (encrypted == null)
+			return null;
+		CachedPassword password = new CachedPassword();
+		if (encrypted.startsWith(ENCRYPTED))
+			password.encrypted = encrypted;
+		else
+			password.plain = encrypted;
+		return password;
+	}
+
+	public String getPlain() {
+		String plain = this.plain;
+		if (plain == null) {
+			try {
+				plain = new EncryptionXmlAdapter().unmarshal(encrypted);
+			}
+			catch (Exception e) {
+				throw new RuntimeException("Could not decrypt password", e);
+			}
+			this.plain = plain;
+		}
+		return plain;
+	}
+
+	/**
+	 * Whether the plain password is known, a password that was read is only decrypted once it is used
+	 */
+	boolean isDecrypted() {
+		return plain != null;
+	}
+
+	public String getEncrypted() {
+		String encrypted = this.encrypted;
+		if (encrypted == null) {
+			try {
+				encrypted = new EncryptionXmlAdapter().marshal(plain);
+			}
+			catch (Exception e) {
+				throw new RuntimeException("Could not encrypt password", e);
+			}
+			this.encrypted = encrypted;
+		}
+		return encrypted;
+	}
+}
@@ -0,0 +1,323 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Finds certificates across all the keystores of a manager by subject, issuer and serial number, subject key identifier or sha-256 fingerprint.
+ * The keystores are loaded when the index is built, a keystore that changes afterwards is only marked as outdated and indexed again from memory on the next lookup.
+ * Lookups never read from storage: a keystore that is not loaded keeps what it contributed until it is loaded again.
+ * The certificate of each entry is indexed, for private key entries that is the first certificate of the chain.
+ */
+public class CertificateIndex {
+
+	/**
+	 * Where a certificate can be found: the alias of the keystore in the manager and the alias of the entry in that keystore
+	 */
+	public static class Location {
+		private String keyStore, alias;
+
+		public Location(String keyStore, String alias) {
+			this.keyStore = keyStore;
+			this.alias = alias;
+		}
+		public String getKeyStore() {
+			return keyStore;
+		}
+		public String getAlias() {
+			return alias;
+		}
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Location))
+				return false;
+			Location other = (Location) object;
+			return keyStore.equals(other.keyStore) && alias.equals(other.alias);
+		}
+		@Override
+		public int hashCode() {
+			return 31 * keyStore.hashCode() + alias.hashCode();
+		}
+		@Override
+		public String toString() {
+			return keyStore + ":" + alias;
+		}
+	}
+
+	/**
+	 * A single key that a keystore contributed to the index
+	 */
+	private static class Indexed {
+		private String key;
+		private Location location;
+
+		private Indexed(String key, Location location) {
+			this.key = key;
+			this.location = location;
+		}
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Indexed))
+				return false;
+			Indexed other = (Indexed) object;
+			return key.equals(other.key) && location.equals(other.location);
+		}
+		@Override
+		public int hashCode() {
+			return 31 * key.hashCode() + location.hashCode();
+		}
+	}
+
+	private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14", AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+
+	private KeyStoreManagerImpl manager;
+
+	/**
+	 * The sets are never modified once they are in the map, lookups don't need to lock
+	 */
+	private ConcurrentMap<String, Set<Location>> locations = new ConcurrentHashMap<String, Set<Location>>();
+
+	/**
+	 * What each keystore contributed, only the difference is applied when it is indexed again
+	 */
+	private Map<String, Set<Indexed>> contributions = new HashMap<String, Set<Indexed>>();
+
+	private Set<String> outdated = ConcurrentHashMap.newKeySet();
+	private Map<String, Exception> failures = new ConcurrentHashMap<String, Exception>();
+
+	CertificateIndex(KeyStoreManagerImpl manager) {
+		this.manager = manager;
+	}
+
+	public List<Location> findBySubject(X500Principal subject) {
+		return find("subject:" + subject.getName(X500Principal.CANONICAL));
+	}
+
+	public List<Location> findByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) {
+		return find("issuer:" + serialNumber.toString(16) + ":" + issuer.getName(X500Principal.CANONICAL));
+	}
+
+	public List<Location> findBySubjectKeyIdentifier(byte [] keyIdentifier) {
+		return find("ski:" + toHex(keyIdentifier));
+	}
+
+	/**
+	 * Finds the certificate by the sha-256 hash of its encoded form
+	 */
+	public List<Location> findByFingerprint(byte [] fingerprint) {
+		return find("sha256:" + toHex(fingerprint));
+	}
+
+	/**
+	 * Finds where the given certificate is stored
+	 */
+	public List<Location> find(X509Certificate certificate) {
+		return findByFingerprint(getFingerprint(certificate));
+	}
+
+	public X509Certificate getCertificate(Location location) throws IOException, KeyStoreException {
+		ManagedKeyStoreImpl keystore = manager.getKeyStore(location.getKeyStore());
+		return keystore == null ? null : keystore.getCertificate(location.getAlias());
+	}
+
+	/**
+	 * The keystores that could not be indexed, they are tried again once they change
+	 */
+	public Map<String, Exception> getFailures() {
+		return failures;
+	}
+
+	void invalidate(String keystore) {
+		outdated.add(keystore);
+	}
+
+	synchronized void remove(String keystore) {
+		outdated.remove(keystore);
+		failures.remove(keystore);
+		apply(keystore, Collections.<Indexed>emptySet());
+	}
+
+	private List<Location> find(String key) {
+		if (!outdated.isEmpty())
+			refresh();
+		Set<Location> found = locations.get(key);
+		return found == null ? Collections.<Location>emptyList() : new ArrayList<Location>(found);
+	}
+
+	void failed(String keystore, Exception exception) {
+		failures.put(keystore, exception);
+	}
+
+	synchronized void refresh() {
+		for (String keystore : new ArrayList<String>(outdated)) {
+			// removed before reading, a change while we read marks it as outdated again
+			outdated.remove(keystore);
+			try {
+				ManagedKeyStoreImpl implementation = manager.getLoadedKeyStore(keystore);
+				if (implementation == null) {
+					// deleted in the meantime, otherwise it is indexed again once it is loaded
+					if (manager.getKeyStoreConfiguration(keystore) == null)
+						apply(keystore, Collections.<Indexed>emptySet());
+					continue;
+				}
+				Set<Indexed> indexed = new HashSet<Indexed>();
+				for (Map.Entry<String, X509Certificate> entry : implementation.getCertificates().entrySet())
+					index(indexed, entry.getValue(), new Location(keystore, entry.getKey()));
+				apply(keystore, indexed);
+				failures.remove(keystore);
+			}
+			catch (KeyStoreException e) {
+				failures.put(keystore, e);
+			}
+			catch (RuntimeException e) {
+				failures.put(keystore, e);
+			}
+		}
+	}
+
+	private static void index(Set<Indexed> indexed, X509Certificate certificate, Location location) {
+		indexed.add(new Indexed("subject:" + certificate.getSubjectX500Principal().getName(X500Principal.CANONICAL), location));
+		indexed.add(new Indexed("issuer:" + certificate.getSerialNumber().toString(16) + ":" + certificate.getIssuerX500Principal().getName(X500Principal.CANONICAL), location));
+		byte [] keyIdentifier = getSubjectKeyIdentifier(certificate);
+		if (keyIdentifier != null)
+			indexed.add(new Indexed("ski:" + toHex(keyIdentifier), location));
+		indexed.add(new Indexed("sha256:" + toHex(getFingerprint(certificate)), location));
+	}
+
+	/**
+	 * Only the keys that were added or removed are touched, a certificate that is still there never disappears from a lookup
+	 */
+	private void apply(String keystore, Set<Indexed> indexed) {
+		Set<Indexed> previous = contributions.get(keystore);
+		if (previous != null) {
+			for (Indexed old : previous) {
+				if (!indexed.contains(old))
+					update(old, false);
+			}
+		}
+		for (Indexed current : indexed) {
+			if (previous == null || !previous.contains(current))
+				update(current, true);
+		}
+		if (indexed.isEmpty())
+			contributions.remove(keystore);
+		else
+			contributions.put(keystore, indexed);
+	}
+
+	private void update(Indexed indexed, boolean add) {
+		Set<Location> existing = locations.get(indexed.key);
+		Set<Location> updated = existing == null ? new LinkedHashSet<Location>() : new LinkedHashSet<Location>(existing);
+		if (add)
+			updated.add(indexed.location);
+		else
+			updated.remove(indexed.location);
+		if (updated.isEmpty())
+			locations.remove(indexed.key);
+		else
+			locations.put(indexed.key, Collections.unmodifiableSet(updated));
+	}
+
+	public static byte [] getFingerprint(X509Certificate certificate) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (CertificateEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The key identifier from the extension, null if the certificate does not have one
+	 */
+	public static byte [] getSubjectKeyIdentifier(X509Certificate certificate) {
+		byte [] extension = certificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER);
+		if (extension == null)
+			return null;
+		// the extension value is an octet string containing the der encoded identifier, which is an octet string itself
+		byte [] identifier = getContent(extension, (byte) 0x04);
+		return identifier == null ? null : getContent(identifier, (byte) 0x04);
+	}
+
+	/**
+	 * The key identifier of the issuer, which matches the subject key identifier of the issuer certificate, null if the certificate does not have one
+	 */
+	public static byte [] getAuthorityKeyIdentifier(X509Certificate certificate) {
+		byte [] extension = certificate.getExtensionValue(AUTHORITY_KEY_IDENTIFIER);
+		if (extension == null)
+			return null;
+		// a sequence of optional tagged fields, the key identifier is the implicitly tagged [0]
+		byte [] identifier = getContent(extension, (byte) 0x04);
+		byte [] sequence = identifier == null ? null : getContent(identifier, (byte) 0x30);
+		return sequence == null ? null : getContent(sequence, (byte) 0x80);
+	}
+
+	/**
+	 * The content of the der element at the start of the array if it has the given tag
+	 */
+	private static byte [] getContent(byte [] der, byte tag) {
+		if (der.length < 2 || der[0] != tag)
+			return null;
+		int offset = 2;
+		int length = der[1] & 0xff;
+		// long form: the low bits give the amount of length bytes
+		if (length > 0x7f) {
+			int amount = length & 0x7f;
+			if (amount > 3 || der.length < offset + amount)
+				return null;
+			length = 0;
+			for (int i = 0; i < amount; i++)
+				length = (length << 8) | (der[offset++] & 0xff);
+		}
+		if (offset + length > der.length)
+			return null;
+		return Arrays.copyOfRange(der, offset, offset + length);
+	}
+
+	static String toHex(byte [] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte single : bytes) {
+			builder.append(Character.forDigit((single >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(single & 0xf, 16));
+		}
+		return builder.toString();
+	}
+}
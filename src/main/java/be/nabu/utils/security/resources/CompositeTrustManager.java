@@ -0,0 +1,370 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXCertPathValidatorResult;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Trusts the certificates of several keystores of the same manager without copying them into a new keystore.
+ * The trust anchors are indexed by subject and subject key identifier, a chain is only validated against the anchors that could have issued it.
+ * Successful validations are kept in a bounded lru cache until the keystores change or the chain expires, so a returning peer is not validated again.
+ * The end entity must be allowed to authenticate in the direction that is checked: the extended key usage must allow server or client authentication
+ * and the key usage must allow what the handshake does with the key (sign, encrypt or agree on the secret) for the given auth type.
+ * 
+ * This is a plain X509TrustManager on purpose: the ssl context wraps it with the algorithm constraints and endpoint identification checks.
+ */
+public class CompositeTrustManager implements X509TrustManager {
+
+	private static class Index {
+		private ManagedKeyStoreImpl [] keystores;
+		private long [] generations;
+		private Map<String, List<TrustAnchor>> bySubject = new HashMap<String, List<TrustAnchor>>(), byKeyIdentifier = new HashMap<String, List<TrustAnchor>>();
+		private Set<String> fingerprints = new HashSet<String>();
+		private X509Certificate [] issuers;
+		private long version;
+	}
+
+	private static final String SERVER_AUTHENTICATION = "1.3.6.1.5.5.7.3.1", CLIENT_AUTHENTICATION = "1.3.6.1.5.5.7.3.2", ANY_EXTENDED_KEY_USAGE = "2.5.29.37.0";
+	
+	/**
+	 * The positions in the key usage of the certificate
+	 */
+	private static final int DIGITAL_SIGNATURE = 0, KEY_ENCIPHERMENT = 2, KEY_AGREEMENT = 4;
+	
+	/**
+	 * The server auth types by what they require from the key, as the default trust manager does. Unknown auth types only require the extended key usage.
+	 */
+	private static final Set<String> SERVER_SIGNATURE = new HashSet<String>(Arrays.asList("DHE_DSS", "DHE_RSA", "ECDHE_ECDSA", "ECDHE_RSA", "RSA_EXPORT", "UNKNOWN")),
+		SERVER_ENCRYPTION = new HashSet<String>(Arrays.asList("RSA")),
+		SERVER_KEY_AGREEMENT = new HashSet<String>(Arrays.asList("DH_DSS", "DH_RSA", "ECDH_ECDSA", "ECDH_RSA"));
+
+	private static class Validated {
+		private long version;
+		private long expires;
+	}
+
+	private KeyStoreManagerImpl manager;
+	private List<String> aliases;
+	private volatile Index index;
+	private AtomicLong versions = new AtomicLong();
+	private volatile int maxCacheSize = 1024;
+	private AtomicLong cacheHits = new AtomicLong(), cacheMisses = new AtomicLong();
+
+	private Map<String, Validated> validated = new LinkedHashMap<String, Validated>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Validated> eldest) {
+			return size() > maxCacheSize;
+		}
+	};
+
+	CompositeTrustManager(KeyStoreManagerImpl manager, Collection<String> aliases) {
+		this.manager = manager;
+		this.aliases = new ArrayList<String>(aliases);
+	}
+
+	@Override
+	public void checkClientTrusted(X509Certificate [] chain, String authType) throws CertificateException {
+		check(chain, authType, false);
+	}
+
+	@Override
+	public void checkServerTrusted(X509Certificate [] chain, String authType) throws CertificateException {
+		check(chain, authType, true);
+	}
+
+	@Override
+	public X509Certificate [] getAcceptedIssuers() {
+		try {
+			return getIndex().issuers.clone();
+		}
+		catch (CertificateException e) {
+			return new X509Certificate[0];
+		}
+	}
+
+	private void check(X509Certificate [] chain, String authType, boolean server) throws CertificateException {
+		if (chain == null || chain.length == 0)
+			throw new IllegalArgumentException("No certificate chain given");
+		Index index = getIndex();
+		// a chain that is valid in one direction (or for one auth type) is not necessarily valid in the other
+		String key = (server ? "server:" : "client:") + authType + ":" + getFingerprint(chain);
+		long now = System.currentTimeMillis();
+		synchronized(validated) {
+			Validated cached = validated.get(key);
+			if (cached != null && cached.version == index.version && cached.expires > now) {
+				cacheHits.incrementAndGet();
+				return;
+			}
+		}
+		cacheMisses.incrementAndGet();
+		checkUsage(chain[0], authType, server);
+		long expires = validate(index, chain);
+		if (maxCacheSize > 0) {
+			Validated result = new Validated();
+			result.version = index.version;
+			result.expires = expires;
+			synchronized(validated) {
+				validated.put(key, result);
+			}
+		}
+	}
+
+	/**
+	 * Checks that the end entity may be used to authenticate the server or the client
+	 */
+	static void checkUsage(X509Certificate certificate, String authType, boolean server) throws CertificateException {
+		List<String> extendedKeyUsage = certificate.getExtendedKeyUsage();
+		if (extendedKeyUsage != null && !extendedKeyUsage.contains(server ? SERVER_AUTHENTICATION : CLIENT_AUTHENTICATION) && !extendedKeyUsage.contains(ANY_EXTENDED_KEY_USAGE))
+			throw new CertificateException("The extended key usage of " + certificate.getSubjectX500Principal() + " does not allow " + (server ? "server" : "client") + " authentication");
+		boolean [] keyUsage = certificate.getKeyUsage();
+		if (keyUsage != null) {
+			int required = getRequiredKeyUsage(authType, server);
+			if (required >= 0 && (keyUsage.length <= required || !keyUsage[required]))
+				throw new CertificateException("The key usage of " + certificate.getSubjectX500Principal() + " does not allow auth type " + authType + " for " + (server ? "server" : "client") + " authentication");
+		}
+	}
+
+	/**
+	 * The client always signs the handshake, what the server does depends on the key exchange
+	 */
+	private static int getRequiredKeyUsage(String authType, boolean server) {
+		if (!server || SERVER_SIGNATURE.contains(authType))
+			return DIGITAL_SIGNATURE;
+		else if (SERVER_ENCRYPTION.contains(authType))
+			return KEY_ENCIPHERMENT;
+		else if (SERVER_KEY_AGREEMENT.contains(authType))
+			return KEY_AGREEMENT;
+		return -1;
+	}
+
+	/**
+	 * Validates the chain against the anchors that could have issued it, returns when the validation expires
+	 */
+	private long validate(Index index, X509Certificate [] chain) throws CertificateException {
+		Date now = new Date();
+		long expires = Long.MAX_VALUE;
+		// the peer may send the trusted certificate itself, the path ends right before it
+		int length = 0;
+		while (length < chain.length && !index.fingerprints.contains(CertificateIndex.toHex(CertificateIndex.getFingerprint(chain[length]))))
+			length++;
+		if (length == 0) {
+			// a directly trusted certificate
+			chain[0].checkValidity(now);
+			return chain[0].getNotAfter().getTime();
+		}
+		List<TrustAnchor> anchors = length < chain.length
+			? getAnchors(index, chain[length])
+			: getIssuers(index, chain[length - 1]);
+		if (anchors == null || anchors.isEmpty())
+			throw new CertificateException("No trusted issuer found for " + chain[length - 1].getIssuerX500Principal());
+		try {
+			CertPath path = CertificateFactory.getInstance("X.509").generateCertPath(Arrays.asList(chain).subList(0, length));
+			PKIXParameters parameters = new PKIXParameters(new HashSet<TrustAnchor>(anchors));
+			// as with the default trust manager
+			parameters.setRevocationEnabled(false);
+			parameters.setDate(now);
+			TrustAnchor anchor = ((PKIXCertPathValidatorResult) CertPathValidator.getInstance("PKIX").validate(path, parameters)).getTrustAnchor();
+			for (int i = 0; i < length; i++)
+				expires = Math.min(expires, chain[i].getNotAfter().getTime());
+			if (anchor.getTrustedCert() != null)
+				expires = Math.min(expires, anchor.getTrustedCert().getNotAfter().getTime());
+			return expires;
+		}
+		catch (CertPathValidatorException e) {
+			throw new CertificateException(e);
+		}
+		catch (InvalidAlgorithmParameterException e) {
+			throw new CertificateException(e);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new CertificateException(e);
+		}
+	}
+
+	/**
+	 * The anchors for a trusted certificate that was sent along, matched exactly so a different certificate with the same subject is not trusted
+	 */
+	private static List<TrustAnchor> getAnchors(Index index, X509Certificate certificate) {
+		List<TrustAnchor> anchors = new ArrayList<TrustAnchor>();
+		List<TrustAnchor> candidates = index.bySubject.get(certificate.getSubjectX500Principal().getName(X500Principal.CANONICAL));
+		if (candidates != null) {
+			for (TrustAnchor candidate : candidates) {
+				if (candidate.getTrustedCert().equals(certificate))
+					anchors.add(candidate);
+			}
+		}
+		return anchors;
+	}
+
+	/**
+	 * The anchors that may have issued the certificate, by authority key identifier if it has one and else by issuer
+	 */
+	private static List<TrustAnchor> getIssuers(Index index, X509Certificate certificate) {
+		byte [] keyIdentifier = CertificateIndex.getAuthorityKeyIdentifier(certificate);
+		List<TrustAnchor> anchors = keyIdentifier == null ? null : index.byKeyIdentifier.get(CertificateIndex.toHex(keyIdentifier));
+		if (anchors == null)
+			anchors = index.bySubject.get(certificate.getIssuerX500Principal().getName(X500Principal.CANONICAL));
+		return anchors;
+	}
+
+	/**
+	 * The index is rebuilt when one of the keystores changed or was loaded again
+	 */
+	private Index getIndex() throws CertificateException {
+		ManagedKeyStoreImpl [] keystores = new ManagedKeyStoreImpl[aliases.size()];
+		try {
+			for (int i = 0; i < keystores.length; i++)
+				keystores[i] = manager.getKeyStore(aliases.get(i));
+		}
+		catch (IOException e) {
+			throw new CertificateException("Could not load the trusted keystores", e);
+		}
+		Index index = this.index;
+		if (index == null || !isCurrent(index, keystores)) {
+			synchronized(this) {
+				index = this.index;
+				if (index == null || !isCurrent(index, keystores)) {
+					index = build(keystores);
+					this.index = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	private static boolean isCurrent(Index index, ManagedKeyStoreImpl [] keystores) {
+		for (int i = 0; i < keystores.length; i++) {
+			if (index.keystores[i] != keystores[i] || (keystores[i] != null && index.generations[i] != keystores[i].getGeneration()))
+				return false;
+		}
+		return true;
+	}
+
+	private Index build(ManagedKeyStoreImpl [] keystores) throws CertificateException {
+		Index index = new Index();
+		index.keystores = keystores;
+		index.generations = new long[keystores.length];
+		index.version = versions.incrementAndGet();
+		Map<String, X509Certificate> issuers = new LinkedHashMap<String, X509Certificate>();
+		for (int i = 0; i < keystores.length; i++) {
+			// deleted keystores simply no longer contribute
+			if (keystores[i] == null)
+				continue;
+			// read before the certificates so a concurrent change triggers another build
+			index.generations[i] = keystores[i].getGeneration();
+			try {
+				for (X509Certificate certificate : keystores[i].getCertificates().values()) {
+					String fingerprint = CertificateIndex.toHex(CertificateIndex.getFingerprint(certificate));
+					// the same certificate in several keystores is only indexed once
+					if (!index.fingerprints.add(fingerprint))
+						continue;
+					issuers.put(fingerprint, certificate);
+					TrustAnchor anchor = new TrustAnchor(certificate, null);
+					add(index.bySubject, certificate.getSubjectX500Principal().getName(X500Principal.CANONICAL), anchor);
+					byte [] keyIdentifier = CertificateIndex.getSubjectKeyIdentifier(certificate);
+					if (keyIdentifier != null)
+						add(index.byKeyIdentifier, CertificateIndex.toHex(keyIdentifier), anchor);
+				}
+			}
+			catch (KeyStoreException e) {
+				throw new CertificateException("Could not read the trusted keystore " + aliases.get(i), e);
+			}
+		}
+		index.issuers = issuers.values().toArray(new X509Certificate[issuers.size()]);
+		return index;
+	}
+
+	private static void add(Map<String, List<TrustAnchor>> map, String key, TrustAnchor anchor) {
+		List<TrustAnchor> anchors = map.get(key);
+		if (anchors == null) {
+			anchors = new ArrayList<TrustAnchor>();
+			map.put(key, anchors);
+		}
+		anchors.add(anchor);
+	}
+
+	private static String getFingerprint(X509Certificate [] chain) throws CertificateException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (X509Certificate certificate : chain)
+				digest.update(certificate.getEncoded());
+			return CertificateIndex.toHex(digest.digest());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (CertificateEncodingException e) {
+			throw new CertificateException(e);
+		}
+	}
+
+	public List<String> getAliases() {
+		return aliases;
+	}
+
+	public int getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * The amount of validated chains that are remembered, 0 disables the cache
+	 */
+	public void setMaxCacheSize(int maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+		synchronized(validated) {
+			validated.clear();
+		}
+	}
+
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+}
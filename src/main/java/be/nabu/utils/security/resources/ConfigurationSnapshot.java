@@ -0,0 +1,197 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.security.StoreType;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreReference;
+
+/**
+ * A binary copy of the manager configuration that is stored next to the xml and can be read in a single pass without jaxb.
+ * It contains a hash of the xml it was created from, if the xml changed since, the snapshot is ignored.
+ * Passwords are stored in their encrypted form and are only decrypted when used, as with the xml.
+ */
+class ConfigurationSnapshot {
+
+	private static final int MAGIC = 0x4b534d53;
+	private static final short VERSION = 2;
+	private static final String EXTENSION = ".snapshot";
+
+	private ConfigurationSnapshot() {
+		// static access only
+	}
+
+	/**
+	 * Reads the snapshot of the given configuration, null is returned if there is none or it is outdated or unreadable
+	 */
+	public static KeyStoreManagerConfiguration read(ReadableResource configuration) throws IOException {
+		return read(configuration, SafeResourceWriter.read(configuration));
+	}
+	
+	/**
+	 * Reads the snapshot of the configuration with the given xml, it is only used if it was created from exactly that xml
+	 */
+	public static KeyStoreManagerConfiguration read(ReadableResource configuration, byte [] xml) throws IOException {
+		Resource snapshot = getSnapshot(configuration);
+		if (!(snapshot instanceof ReadableResource))
+			return null;
+		byte [] content = SafeResourceWriter.read((ReadableResource) snapshot);
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(content));
+		try {
+			if (input.readInt() != MAGIC || input.readShort() != VERSION)
+				return null;
+			// the last modified time and size of the xml can stay the same across an edit, hashing it is still far cheaper than parsing it
+			ResourceFingerprint fingerprint = ResourceFingerprint.read(input);
+			if (!fingerprint.equals(ResourceFingerprint.of(xml)))
+				return null;
+			return read(input);
+		}
+		// a snapshot that can not be read is simply rebuilt
+		catch (IOException e) {
+			return null;
+		}
+		catch (URISyntaxException e) {
+			return null;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the snapshot for the configuration that was just read from or written to the resource with the given content
+	 */
+	public static void write(ReadableResource resource, byte [] xml, KeyStoreManagerConfiguration configuration) throws IOException {
+		if (!(resource.getParent() instanceof ManageableContainer))
+			return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeInt(MAGIC);
+		output.writeShort(VERSION);
+		ResourceFingerprint.of(xml).write(output);
+		write(output, configuration);
+		output.flush();
+		ManageableContainer<?> parent = (ManageableContainer<?>) resource.getParent();
+		Resource snapshot = getSnapshot(resource);
+		if (snapshot == null)
+			snapshot = parent.create(resource.getName() + EXTENSION, "application/octet-stream");
+		SafeResourceWriter.write((WritableResource) snapshot, bytes.toByteArray());
+	}
+
+	private static Resource getSnapshot(Resource configuration) {
+		if (!(configuration.getParent() instanceof ManageableContainer))
+			return null;
+		return ((ManageableContainer<?>) configuration.getParent()).getChild(configuration.getName() + EXTENSION);
+	}
+
+	private static void write(DataOutputStream output, KeyStoreManagerConfiguration configuration) throws IOException {
+		writeString(output, configuration.getNewKeystoreContainer() == null ? null : configuration.getNewKeystoreContainer().toString());
+		List<KeyStoreReference> references = configuration.getKeyStoreConfigurations();
+		output.writeInt(references == null ? -1 : references.size());
+		if (references != null) {
+			for (KeyStoreReference reference : references) {
+				writeString(output, reference.getAlias());
+				writeString(output, reference.getName());
+			}
+		}
+		// copied so the count matches the entries
+		List<KeyStoreConfiguration> keystores = new ArrayList<KeyStoreConfiguration>(configuration.getKeyStores());
+		// in a split configuration the keystores are stored elsewhere
+		if (references != null)
+			keystores.clear();
+		output.writeInt(keystores.size());
+		for (KeyStoreConfiguration keystore : keystores) {
+			writeString(output, keystore.getAlias());
+			writeString(output, keystore.getUri() == null ? null : keystore.getUri().toString());
+			writeString(output, keystore.getType() == null ? null : keystore.getType().name());
+			writeString(output, keystore.getCachedPassword() == null ? null : keystore.getCachedPassword().getEncrypted());
+			Map<String, String> keyPasswords = keystore.getKeyPasswords();
+			List<String> aliases = new ArrayList<String>(keyPasswords.keySet());
+			output.writeInt(aliases.size());
+			for (String alias : aliases) {
+				CachedPassword password = PasswordMap.getCached(keyPasswords, alias);
+				writeString(output, alias);
+				writeString(output, password == null ? null : password.getEncrypted());
+			}
+		}
+	}
+
+	private static KeyStoreManagerConfiguration read(DataInputStream input) throws IOException, URISyntaxException {
+		KeyStoreManagerConfiguration configuration = new KeyStoreManagerConfiguration();
+		String container = readString(input);
+		configuration.setNewKeystoreContainer(container == null ? null : new URI(container));
+		int amount = input.readInt();
+		if (amount >= 0) {
+			List<KeyStoreReference> references = new ArrayList<KeyStoreReference>(amount);
+			for (int i = 0; i < amount; i++) {
+				KeyStoreReference reference = new KeyStoreReference();
+				reference.setAlias(readString(input));
+				reference.setName(readString(input));
+				references.add(reference);
+			}
+			configuration.setKeyStoreConfigurations(references);
+		}
+		amount = input.readInt();
+		List<KeyStoreConfiguration> keystores = new ArrayList<KeyStoreConfiguration>(amount);
+		for (int i = 0; i < amount; i++) {
+			KeyStoreConfiguration keystore = new KeyStoreConfiguration();
+			keystore.setAlias(readString(input));
+			String uri = readString(input);
+			keystore.setUri(uri == null ? null : new URI(uri));
+			String type = readString(input);
+			keystore.setType(type == null ? null : StoreType.valueOf(type));
+			keystore.setCachedPassword(CachedPassword.encrypted(readString(input)));
+			int keys = input.readInt();
+			PasswordMap keyPasswords = new PasswordMap();
+			for (int j = 0; j < keys; j++) {
+				String alias = readString(input);
+				keyPasswords.putCached(alias, CachedPassword.encrypted(readString(input)));
+			}
+			keystore.setKeyPasswords(keyPasswords);
+			keystores.add(keystore);
+		}
+		// indexed in one go
+		configuration.setKeyStores(keystores);
+		return configuration;
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		output.writeBoolean(value != null);
+		if (value != null)
+			output.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+}
@@ -0,0 +1,365 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.KeyStoreException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically checks when the certificates in all the keystores of a manager expire and notifies the listeners when they get close.
+ * The first scan loads the keystores in parallel on the executor, later scans only read the keystores that changed (or were loaded again) since.
+ * The expiries are kept ordered by date, so notifying only visits the certificates that are within the largest threshold.
+ * Each threshold is notified once per certificate: a certificate that is replaced (e.g. by a listener that renews it) starts over.
+ */
+public class ExpiryScanner implements Closeable {
+
+	public interface Listener {
+		/**
+		 * The certificate expires within the given threshold (in milliseconds), a threshold of 0 means it has expired
+		 */
+		public void expiring(Expiry expiry, long threshold);
+	}
+
+	public static class Expiry implements Comparable<Expiry> {
+		private String keyStore, alias;
+		private X509Certificate certificate;
+		/**
+		 * The amount of thresholds that were notified
+		 */
+		private int notified;
+
+		private Expiry(String keyStore, String alias, X509Certificate certificate) {
+			this.keyStore = keyStore;
+			this.alias = alias;
+			this.certificate = certificate;
+		}
+		public String getKeyStore() {
+			return keyStore;
+		}
+		public String getAlias() {
+			return alias;
+		}
+		public X509Certificate getCertificate() {
+			return certificate;
+		}
+		public long getNotAfter() {
+			return certificate.getNotAfter().getTime();
+		}
+		@Override
+		public int compareTo(Expiry other) {
+			int comparison = Long.compare(getNotAfter(), other.getNotAfter());
+			if (comparison == 0)
+				comparison = keyStore.compareTo(other.keyStore);
+			if (comparison == 0)
+				comparison = alias.compareTo(other.alias);
+			return comparison;
+		}
+		@Override
+		public String toString() {
+			return keyStore + ":" + alias + " (" + certificate.getNotAfter() + ")";
+		}
+	}
+
+	/**
+	 * What the last scan of a keystore found, it is only scanned again if the keystore changed
+	 */
+	private static class Scanned {
+		private ManagedKeyStoreImpl keystore;
+		private long generation;
+		private Map<String, Expiry> expiries = new HashMap<String, Expiry>();
+	}
+
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	private KeyStoreManagerImpl manager;
+	private Executor executor;
+	private ScheduledExecutorService scheduler;
+	private boolean ownsScheduler;
+	private long interval;
+	private ScheduledFuture<?> future;
+	private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	/**
+	 * From the largest to the smallest
+	 */
+	private volatile long [] thresholds = new long [] { 30 * DAY, 7 * DAY, DAY, 0 };
+	private Map<String, Scanned> scanned = new HashMap<String, Scanned>();
+	private TreeSet<Expiry> expiries = new TreeSet<Expiry>();
+	private AtomicLong scans = new AtomicLong(), rescanned = new AtomicLong(), notified = new AtomicLong(), failed = new AtomicLong();
+	private volatile Exception lastFailure;
+
+	public ExpiryScanner(KeyStoreManagerImpl manager, Executor executor, long interval, TimeUnit unit) {
+		this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "keystore-expiry-scanner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), manager, executor, interval, unit);
+		this.ownsScheduler = true;
+	}
+
+	/**
+	 * The executor is used to load the keystores in parallel, it determines how many are loaded at once
+	 */
+	public ExpiryScanner(ScheduledExecutorService scheduler, KeyStoreManagerImpl manager, Executor executor, long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("The interval must be positive");
+		this.scheduler = scheduler;
+		this.manager = manager;
+		this.executor = executor;
+		this.interval = unit.toNanos(interval);
+	}
+
+	public synchronized void start() {
+		if (future == null) {
+			future = scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					scan();
+				}
+			}, 0, interval, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+
+	/**
+	 * Brings the expiries up to date with the keystores and notifies the listeners of the thresholds that were crossed.
+	 * A keystore that fails to load keeps the expiries of its last successful scan, the failure is available through getLastFailure().
+	 */
+	public void scan() {
+		List<Expiry> crossed = new ArrayList<Expiry>();
+		List<Long> crossedThresholds = new ArrayList<Long>();
+		synchronized(expiries) {
+			scans.incrementAndGet();
+			List<String> aliases = manager.listKeystores();
+			// forget the keystores that were deleted
+			Set<String> configured = new HashSet<String>(aliases);
+			for (String alias : new ArrayList<String>(scanned.keySet())) {
+				if (!configured.contains(alias))
+					forget(alias);
+			}
+			List<String> load = new ArrayList<String>();
+			for (String alias : aliases) {
+				Scanned previous = scanned.get(alias);
+				ManagedKeyStoreImpl loaded = manager.getLoadedKeyStore(alias);
+				if (loaded == null || previous == null || previous.keystore != loaded || previous.generation != loaded.getGeneration())
+					load.add(alias);
+			}
+			if (!load.isEmpty()) {
+				// loaded keystores are returned right away, the others are loaded in parallel
+				KeyStoreManagerImpl.Preload preload = manager.preload(load, executor);
+				for (Map.Entry<String, Exception> failure : preload.getFailures().entrySet()) {
+					failed.incrementAndGet();
+					lastFailure = failure.getValue();
+				}
+				for (Map.Entry<String, ManagedKeyStoreImpl> entry : preload.getKeyStores().entrySet()) {
+					try {
+						update(entry.getKey(), entry.getValue());
+						rescanned.incrementAndGet();
+					}
+					catch (KeyStoreException e) {
+						failed.incrementAndGet();
+						lastFailure = e;
+					}
+				}
+			}
+			long [] thresholds = this.thresholds;
+			if (thresholds.length > 0) {
+				long now = System.currentTimeMillis();
+				for (Expiry expiry : expiries) {
+					// ordered by date, nothing further on is within any threshold
+					if (expiry.getNotAfter() - thresholds[0] > now)
+						break;
+					int passed = 0;
+					while (passed < thresholds.length && expiry.getNotAfter() - thresholds[passed] <= now)
+						passed++;
+					// only the most urgent threshold is notified if several were crossed since the last scan
+					if (passed > expiry.notified) {
+						expiry.notified = passed;
+						crossed.add(expiry);
+						crossedThresholds.add(thresholds[passed - 1]);
+					}
+				}
+			}
+		}
+		// outside of the lock so a listener can renew the certificate without waiting for us
+		for (int i = 0; i < crossed.size(); i++) {
+			notified.incrementAndGet();
+			for (Listener listener : listeners) {
+				try {
+					listener.expiring(crossed.get(i), crossedThresholds.get(i));
+				}
+				catch (RuntimeException e) {
+					lastFailure = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the expiries of the keystore, a certificate that is still there keeps what was already notified
+	 */
+	private void update(String alias, ManagedKeyStoreImpl keystore) throws KeyStoreException {
+		// read before the certificates so a concurrent change is picked up by the next scan
+		long generation = keystore.getGeneration();
+		// if reading fails, the previous scan remains
+		Map<String, X509Certificate> certificates = keystore.getCertificates();
+		Scanned previous = forget(alias);
+		Scanned current = new Scanned();
+		current.keystore = keystore;
+		current.generation = generation;
+		scanned.put(alias, current);
+		for (Map.Entry<String, X509Certificate> entry : certificates.entrySet()) {
+			Expiry expiry = new Expiry(alias, entry.getKey(), entry.getValue());
+			Expiry existing = previous == null ? null : previous.expiries.get(entry.getKey());
+			if (existing != null && existing.certificate.equals(entry.getValue()))
+				expiry.notified = existing.notified;
+			current.expiries.put(entry.getKey(), expiry);
+			expiries.add(expiry);
+		}
+	}
+
+	private Scanned forget(String alias) {
+		Scanned previous = scanned.remove(alias);
+		if (previous != null) {
+			for (Expiry expiry : previous.expiries.values())
+				expiries.remove(expiry);
+		}
+		return previous;
+	}
+
+	/**
+	 * All the known expiries, the first one expires first
+	 */
+	public List<Expiry> getExpiries() {
+		synchronized(expiries) {
+			return new ArrayList<Expiry>(expiries);
+		}
+	}
+
+	/**
+	 * The expiries within the given amount of milliseconds from now, including the ones that already expired
+	 */
+	public List<Expiry> getExpiring(long within) {
+		List<Expiry> expiring = new ArrayList<Expiry>();
+		long limit = System.currentTimeMillis() + within;
+		synchronized(expiries) {
+			for (Expiry expiry : expiries) {
+				if (expiry.getNotAfter() > limit)
+					break;
+				expiring.add(expiry);
+			}
+		}
+		return expiring;
+	}
+
+	public List<Long> getThresholds() {
+		List<Long> list = new ArrayList<Long>();
+		for (long threshold : thresholds)
+			list.add(threshold);
+		return list;
+	}
+
+	/**
+	 * The amounts of milliseconds before the expiry at which the listeners are notified, 0 notifies when it has expired.
+	 * The default is 30 days, 7 days, 1 day and expired.
+	 */
+	public void setThresholds(long... thresholds) {
+		long [] sorted = thresholds.clone();
+		Arrays.sort(sorted);
+		// largest first, without duplicates
+		Set<Long> unique = new HashSet<Long>();
+		List<Long> ordered = new ArrayList<Long>();
+		for (int i = sorted.length - 1; i >= 0; i--) {
+			if (unique.add(sorted[i]))
+				ordered.add(sorted[i]);
+		}
+		long [] result = new long[ordered.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = ordered.get(i);
+		synchronized(expiries) {
+			this.thresholds = result;
+			// what was notified refers to the old thresholds
+			for (Expiry expiry : expiries)
+				expiry.notified = 0;
+		}
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void close() throws IOException {
+		stop();
+		if (ownsScheduler)
+			scheduler.shutdown();
+	}
+
+	public long getScans() {
+		return scans.get();
+	}
+
+	/**
+	 * The amount of times a keystore was read because it was new or had changed
+	 */
+	public long getRescanned() {
+		return rescanned.get();
+	}
+
+	public long getNotified() {
+		return notified.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+}
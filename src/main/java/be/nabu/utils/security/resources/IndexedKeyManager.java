@@ -0,0 +1,304 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.net.Socket;
+import java.security.KeyStoreException;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.StandardConstants;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * A key manager that indexes the private key entries of a managed keystore by host name (from the subject alternative names or else the common name) and key type.
+ * A server key is chosen for the sni host name of the handshake with a single lookup, wildcard certificates match one label.
+ * If there are several candidates, the one that expires last is chosen. Without sni (or a match) the first key of the requested type is used.
+ * When the keystore changes, the index is rebuilt on the next handshake, the host names are only parsed again for the entries that changed.
+ */
+public class IndexedKeyManager extends X509ExtendedKeyManager {
+
+	private static final int DNS_NAME = 2;
+
+	private static class Index {
+		private long generation;
+		private Map<String, X509Certificate> certificates = new HashMap<String, X509Certificate>();
+		private Map<String, List<String>> hostNames = new HashMap<String, List<String>>();
+		/**
+		 * The aliases by key type and host name ("RSA:example.com"), for wildcards the host name is the part after "*."
+		 */
+		private Map<String, List<String>> exact = new HashMap<String, List<String>>(), wildcards = new HashMap<String, List<String>>();
+		private Map<String, List<String>> types = new HashMap<String, List<String>>();
+	}
+
+	private ManagedKeyStoreImpl keystore;
+	private volatile Index index;
+
+	IndexedKeyManager(ManagedKeyStoreImpl keystore) {
+		this.keystore = keystore;
+	}
+
+	@Override
+	public String chooseEngineServerAlias(String keyType, Principal [] issuers, SSLEngine engine) {
+		return chooseServerAlias(keyType, engine == null ? null : engine.getHandshakeSession());
+	}
+
+	@Override
+	public String chooseServerAlias(String keyType, Principal [] issuers, Socket socket) {
+		return chooseServerAlias(keyType, socket instanceof SSLSocket ? ((SSLSocket) socket).getHandshakeSession() : null);
+	}
+
+	/**
+	 * Chooses the key for the given host name, null is allowed if the client did not send one
+	 */
+	public String chooseServerAlias(String keyType, String hostName) {
+		if (keyType == null)
+			return null;
+		Index index = getIndex();
+		String type = getType(keyType);
+		if (hostName != null) {
+			String host = hostName.toLowerCase(Locale.ROOT);
+			List<String> aliases = index.exact.get(type + ":" + host);
+			if (aliases == null) {
+				int dot = host.indexOf('.');
+				if (dot > 0)
+					aliases = index.wildcards.get(type + ":" + host.substring(dot + 1));
+			}
+			if (aliases != null)
+				return aliases.get(0);
+		}
+		List<String> aliases = index.types.get(type);
+		return aliases == null ? null : aliases.get(0);
+	}
+
+	private String chooseServerAlias(String keyType, SSLSession session) {
+		return chooseServerAlias(keyType, getHostName(session));
+	}
+
+	@Override
+	public String chooseEngineClientAlias(String [] keyTypes, Principal [] issuers, SSLEngine engine) {
+		return chooseClientAlias(keyTypes, issuers, (Socket) null);
+	}
+
+	/**
+	 * The first key of the requested types whose certificate was issued by one of the given issuers (if any)
+	 */
+	@Override
+	public String chooseClientAlias(String [] keyTypes, Principal [] issuers, Socket socket) {
+		if (keyTypes == null)
+			return null;
+		for (String keyType : keyTypes) {
+			String [] aliases = getClientAliases(keyType, issuers);
+			if (aliases != null)
+				return aliases[0];
+		}
+		return null;
+	}
+
+	@Override
+	public String [] getClientAliases(String keyType, Principal [] issuers) {
+		return getAliases(keyType, issuers);
+	}
+
+	@Override
+	public String [] getServerAliases(String keyType, Principal [] issuers) {
+		return getAliases(keyType, issuers);
+	}
+
+	private String [] getAliases(String keyType, Principal [] issuers) {
+		if (keyType == null)
+			return null;
+		Index index = getIndex();
+		List<String> aliases = index.types.get(getType(keyType));
+		if (aliases == null)
+			return null;
+		List<String> matching = new ArrayList<String>();
+		List<Principal> accepted = issuers == null ? null : Arrays.asList(issuers);
+		for (String alias : aliases) {
+			if (accepted == null || accepted.isEmpty() || accepted.contains(index.certificates.get(alias).getIssuerX500Principal()))
+				matching.add(alias);
+		}
+		return matching.isEmpty() ? null : matching.toArray(new String[matching.size()]);
+	}
+
+	@Override
+	public X509Certificate [] getCertificateChain(String alias) {
+		if (alias == null || !getIndex().certificates.containsKey(alias))
+			return null;
+		try {
+			return keystore.getChain(alias);
+		}
+		catch (KeyStoreException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public PrivateKey getPrivateKey(String alias) {
+		if (alias == null || !getIndex().certificates.containsKey(alias))
+			return null;
+		try {
+			return keystore.getPrivateKey(alias);
+		}
+		catch (KeyStoreException e) {
+			return null;
+		}
+	}
+
+	private Index getIndex() {
+		Index index = this.index;
+		if (index == null || index.generation != keystore.getGeneration()) {
+			synchronized(this) {
+				index = this.index;
+				if (index == null || index.generation != keystore.getGeneration()) {
+					index = build(index);
+					this.index = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Reuses the host names of the previous index for the entries that still have the same certificate
+	 */
+	private Index build(Index previous) {
+		Index index = new Index();
+		// read before the entries so a concurrent change triggers another build
+		index.generation = keystore.getGeneration();
+		try {
+			index.certificates.putAll(keystore.getCertificates(true));
+		}
+		catch (KeyStoreException e) {
+			throw new RuntimeException(e);
+		}
+		for (Map.Entry<String, X509Certificate> entry : index.certificates.entrySet()) {
+			String alias = entry.getKey();
+			X509Certificate certificate = entry.getValue();
+			List<String> hostNames = previous != null && certificate.equals(previous.certificates.get(alias)) ? previous.hostNames.get(alias) : getHostNames(certificate);
+			index.hostNames.put(alias, hostNames);
+			String type = certificate.getPublicKey().getAlgorithm().toUpperCase(Locale.ROOT);
+			add(index.types, type, alias);
+			for (String hostName : hostNames) {
+				if (hostName.startsWith("*."))
+					add(index.wildcards, type + ":" + hostName.substring(2), alias);
+				else
+					add(index.exact, type + ":" + hostName, alias);
+			}
+		}
+		final Map<String, X509Certificate> certificates = index.certificates;
+		Comparator<String> expiresLast = new Comparator<String>() {
+			@Override
+			public int compare(String first, String second) {
+				return certificates.get(second).getNotAfter().compareTo(certificates.get(first).getNotAfter());
+			}
+		};
+		for (List<String> aliases : index.types.values())
+			Collections.sort(aliases, expiresLast);
+		for (List<String> aliases : index.exact.values())
+			Collections.sort(aliases, expiresLast);
+		for (List<String> aliases : index.wildcards.values())
+			Collections.sort(aliases, expiresLast);
+		return index;
+	}
+
+	private static void add(Map<String, List<String>> map, String key, String alias) {
+		List<String> aliases = map.get(key);
+		if (aliases == null) {
+			aliases = new ArrayList<String>();
+			map.put(key, aliases);
+		}
+		if (!aliases.contains(alias))
+			aliases.add(alias);
+	}
+
+	/**
+	 * The dns names from the subject alternative names, the common name is only used if there are none (as browsers do)
+	 */
+	static List<String> getHostNames(X509Certificate certificate) {
+		List<String> hostNames = new ArrayList<String>();
+		try {
+			Collection<List<?>> alternativeNames = certificate.getSubjectAlternativeNames();
+			if (alternativeNames != null) {
+				for (List<?> alternativeName : alternativeNames) {
+					if (alternativeName.size() >= 2 && Integer.valueOf(DNS_NAME).equals(alternativeName.get(0)) && alternativeName.get(1) instanceof String)
+						hostNames.add(((String) alternativeName.get(1)).toLowerCase(Locale.ROOT));
+				}
+			}
+		}
+		catch (CertificateParsingException e) {
+			// fall back to the common name
+		}
+		if (hostNames.isEmpty()) {
+			try {
+				for (Rdn rdn : new LdapName(certificate.getSubjectX500Principal().getName()).getRdns()) {
+					if ("CN".equalsIgnoreCase(rdn.getType()))
+						hostNames.add(rdn.getValue().toString().toLowerCase(Locale.ROOT));
+				}
+			}
+			catch (InvalidNameException e) {
+				// no host names
+			}
+		}
+		return hostNames;
+	}
+
+	private static String getHostName(SSLSession session) {
+		if (!(session instanceof ExtendedSSLSession))
+			return null;
+		for (SNIServerName name : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+			if (name.getType() == StandardConstants.SNI_HOST_NAME) {
+				try {
+					return name instanceof SNIHostName ? ((SNIHostName) name).getAsciiName() : new SNIHostName(name.getEncoded()).getAsciiName();
+				}
+				catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Older key types combine the key and signature algorithm (e.g. "EC_RSA"), we only look at the key
+	 */
+	private static String getType(String keyType) {
+		int index = keyType.indexOf('_');
+		return (index > 0 ? keyType.substring(0, index) : keyType).toUpperCase(Locale.ROOT);
+	}
+}
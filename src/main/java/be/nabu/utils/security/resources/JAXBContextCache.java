@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * Creating a JAXBContext is expensive (reflection over the entire class graph) while the resulting context is thread safe.
+ * The contexts are shared per configuration class, the (not thread safe) marshallers and unmarshallers are kept per thread.
+ * A caller that changes a property of a marshaller must restore it before returning, the next use on the same thread gets the same instance.
+ */
+class JAXBContextCache {
+	
+	/**
+	 * The context is built by the first thread that asks for it, other threads asking for the same class wait for that result
+	 */
+	private static ConcurrentHashMap<Class<?>, FutureTask<JAXBContext>> contexts = new ConcurrentHashMap<Class<?>, FutureTask<JAXBContext>>();
+	
+	/**
+	 * Keyed by the context (not the class) so an evicted context is no longer used.
+	 * The key is weak and the value only weakly refers to the marshaller (which refers to the context), so a thread never keeps an evicted context (and its classloader) alive.
+	 * A marshaller that was collected is simply created again.
+	 */
+	private static ThreadLocal<Map<JAXBContext, Reference<Marshaller>>> marshallers = new ThreadLocal<Map<JAXBContext, Reference<Marshaller>>>() {
+		@Override
+		protected Map<JAXBContext, Reference<Marshaller>> initialValue() {
+			return new WeakHashMap<JAXBContext, Reference<Marshaller>>();
+		}
+	};
+	
+	private static ThreadLocal<Map<JAXBContext, Reference<Unmarshaller>>> unmarshallers = new ThreadLocal<Map<JAXBContext, Reference<Unmarshaller>>>() {
+		@Override
+		protected Map<JAXBContext, Reference<Unmarshaller>> initialValue() {
+			return new WeakHashMap<JAXBContext, Reference<Unmarshaller>>();
+		}
+	};
+	
+	private JAXBContextCache() {
+		// static access only
+	}
+	
+	public static JAXBContext getContext(final Class<?> clazz) throws JAXBException {
+		FutureTask<JAXBContext> task = contexts.get(clazz);
+		if (task == null) {
+			FutureTask<JAXBContext> created = new FutureTask<JAXBContext>(new Callable<JAXBContext>() {
+				@Override
+				public JAXBContext call() throws JAXBException {
+					return JAXBContext.newInstance(clazz);
+				}
+			});
+			task = contexts.putIfAbsent(clazz, created);
+			if (task == null) {
+				task = created;
+				task.run();
+			}
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			// a failure is not cached, the next request tries again
+			contexts.remove(clazz, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof JAXBException)
+				throw (JAXBException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw new JAXBException(cause);
+		}
+		finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * The marshaller of the current thread for the class, it must not be handed to other threads
+	 */
+	public static Marshaller getMarshaller(Class<?> clazz) throws JAXBException {
+		JAXBContext context = getContext(clazz);
+		Map<JAXBContext, Reference<Marshaller>> cache = marshallers.get();
+		Reference<Marshaller> reference = cache.get(context);
+		Marshaller marshaller = reference == null ? null : reference.get();
+		if (marshaller == null) {
+			marshaller = context.createMarshaller();
+			cache.put(context, new WeakReference<Marshaller>(marshaller));
+		}
+		return marshaller;
+	}
+	
+	public static Unmarshaller getUnmarshaller(Class<?> clazz) throws JAXBException {
+		JAXBContext context = getContext(clazz);
+		Map<JAXBContext, Reference<Unmarshaller>> cache = unmarshallers.get();
+		Reference<Unmarshaller> reference = cache.get(context);
+		Unmarshaller unmarshaller = reference == null ? null : reference.get();
+		if (unmarshaller == null) {
+			unmarshaller = context.createUnmarshaller();
+			cache.put(context, new WeakReference<Unmarshaller>(unmarshaller));
+		}
+		return unmarshaller;
+	}
+	
+	/**
+	 * Drops the cached context for a class, for example when it is being reloaded from a new classloader
+	 */
+	public static void evict(Class<?> clazz) {
+		contexts.remove(clazz);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.Serializable;
+
+/**
+ * Tells the other managers sharing the same storage that a keystore was changed, it is only sent once the change has been written.
+ */
+public class KeyStoreEvent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		/**
+		 * The content of the keystore changed
+		 */
+		CHANGED,
+		/**
+		 * The configuration of the keystore (like its key passwords) changed or the keystore was created
+		 */
+		CONFIGURED,
+		DELETED
+	}
+
+	private String origin, alias;
+	private Type type;
+
+	public KeyStoreEvent(String origin, String alias, Type type) {
+		this.origin = origin;
+		this.alias = alias;
+		this.type = type;
+	}
+
+	/**
+	 * Identifies the manager that sent the event, a manager ignores its own events
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	public String getAlias() {
+		return alias;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + alias + " (" + origin + ")";
+	}
+}
@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+/**
+ * Distributes keystore events between managers (usually on different nodes) that share the same storage.
+ * Events should be delivered asynchronously: they are published while locks of the sending keystore are held.
+ */
+public interface KeyStoreEventBus {
+
+	public interface Listener {
+		public void handle(KeyStoreEvent event);
+	}
+
+	public void publish(KeyStoreEvent event);
+
+	public void subscribe(Listener listener);
+
+	public void unsubscribe(Listener listener);
+}
@@ -17,6 +17,8 @@
 
 package be.nabu.utils.security.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,22 +27,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.adapters.XmlAdapter;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.WritableResource;
-import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.io.api.ByteBuffer;
-import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.io.api.WritableContainer;
-import be.nabu.utils.security.EncryptionXmlAdapter;
 import be.nabu.utils.security.StoreType;
 
 @XmlRootElement(name="keystoreManager")
@@ -48,16 +47,162 @@ public class KeyStoreManagerConfiguration {
 	
 	private URI newKeystoreContainer;
 	
-	private List<KeyStoreConfiguration> keyStores = new ArrayList<KeyStoreConfiguration>();
+	private List<KeyStoreConfiguration> keyStores = new CopyOnWriteArrayList<KeyStoreConfiguration>();
+	
+	/**
+	 * The configurations by alias, if an alias occurs more than once the first configuration in the list wins
+	 * It is guarded by this instance and is rebuilt if the list was modified directly
+	 */
+	private Map<String, KeyStoreConfiguration> index = new HashMap<String, KeyStoreConfiguration>();
+	private int indexedSize;
+	
+	/**
+	 * If set, the configuration of each keystore is stored in a resource of its own and this file only refers to them
+	 */
+	private List<KeyStoreReference> keyStoreConfigurations;
 
+	/**
+	 * The list can be iterated while it is being modified, use putKeyStore() and removeKeyStore() to modify it
+	 */
 	public List<KeyStoreConfiguration> getKeyStores() {
 		return keyStores;
 	}
 
-	public void setKeyStores(List<KeyStoreConfiguration> handlers) {
-		this.keyStores = handlers;
+	public synchronized void setKeyStores(List<KeyStoreConfiguration> handlers) {
+		this.keyStores = handlers instanceof CopyOnWriteArrayList ? handlers : new CopyOnWriteArrayList<KeyStoreConfiguration>(handlers);
+		reindex();
+	}
+	
+	/**
+	 * Jaxb adds the elements one by one and may do so before their alias is set, so they are collected in a plain list and only indexed once they are complete
+	 */
+	@SuppressWarnings("unused")
+	private void beforeUnmarshal(Unmarshaller unmarshaller, Object parent) {
+		this.keyStores = new ArrayList<KeyStoreConfiguration>();
+	}
+	
+	@SuppressWarnings("unused")
+	private void afterUnmarshal(Unmarshaller unmarshaller, Object parent) {
+		setKeyStores(keyStores);
+	}
+	
+	private void reindex() {
+		index.clear();
+		for (KeyStoreConfiguration keystore : keyStores) {
+			keystore.owner = this;
+			if (keystore.getAlias() != null && !index.containsKey(keystore.getAlias()))
+				index.put(keystore.getAlias(), keystore);
+		}
+		indexedSize = keyStores.size();
+	}
+	
+	/**
+	 * Points the alias to the first configuration in the list that has it
+	 */
+	private void reindex(String alias) {
+		index.remove(alias);
+		for (KeyStoreConfiguration keystore : keyStores) {
+			if (alias.equals(keystore.getAlias())) {
+				index.put(alias, keystore);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Called by a keystore configuration of this instance when its alias changes
+	 */
+	synchronized void renamed(KeyStoreConfiguration keystore, String previous) {
+		if (previous != null && index.get(previous) == keystore)
+			reindex(previous);
+		if (keystore.getAlias() != null)
+			reindex(keystore.getAlias());
+	}
+	
+	/**
+	 * Looks up the configuration for the given keystore alias using the alias index
+	 */
+	public synchronized KeyStoreConfiguration getKeyStore(String alias) {
+		if (indexedSize != keyStores.size())
+			reindex();
+		return alias == null ? null : index.get(alias);
+	}
+	
+	/**
+	 * Adds the configuration or replaces the existing configuration with the same alias, the previous one (if any) is returned
+	 */
+	public synchronized KeyStoreConfiguration putKeyStore(KeyStoreConfiguration keystore) {
+		KeyStoreConfiguration existing = getKeyStore(keystore.getAlias());
+		keystore.owner = this;
+		if (existing == null)
+			keyStores.add(keystore);
+		else {
+			keyStores.set(keyStores.indexOf(existing), keystore);
+			if (existing != keystore)
+				existing.owner = null;
+		}
+		if (keystore.getAlias() != null)
+			index.put(keystore.getAlias(), keystore);
+		indexedSize = keyStores.size();
+		return existing;
+	}
+	
+	/**
+	 * Removes the configuration with the given alias, the removed configuration (if any) is returned
+	 */
+	public synchronized KeyStoreConfiguration removeKeyStore(String alias) {
+		KeyStoreConfiguration existing = getKeyStore(alias);
+		if (existing != null) {
+			keyStores.remove(existing);
+			existing.owner = null;
+			reindex(alias);
+			indexedSize = keyStores.size();
+		}
+		return existing;
+	}
+
+	
+	public List<KeyStoreReference> getKeyStoreConfigurations() {
+		return keyStoreConfigurations;
+	}
+
+	public void setKeyStoreConfigurations(List<KeyStoreReference> keyStoreConfigurations) {
+		this.keyStoreConfigurations = keyStoreConfigurations;
+	}
+	
+	/**
+	 * An empty list of references is not written, this marks a split configuration so it is still recognized as one when it does not refer to any keystore (yet)
+	 */
+	public Boolean getSplit() {
+		return keyStoreConfigurations == null ? null : true;
+	}
+	
+	public void setSplit(Boolean split) {
+		if (split != null && split && keyStoreConfigurations == null)
+			keyStoreConfigurations = new ArrayList<KeyStoreReference>();
 	}
 	
+	/**
+	 * Refers to the resource that holds the configuration of a keystore
+	 */
+	public static class KeyStoreReference {
+		private String alias, name;
+
+		public String getAlias() {
+			return alias;
+		}
+		public void setAlias(String alias) {
+			this.alias = alias;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
 	public URI getNewKeystoreContainer() {
 		return newKeystoreContainer;
 	}
@@ -66,13 +211,16 @@ public class KeyStoreManagerConfiguration {
 		this.newKeystoreContainer = newKeystoreContainer;
 	}
 
+	/**
+	 * Passwords that were read are handed over as they are and written back in their original encrypted form, see CachedPassword
+	 */
 	public static class AliasPasswordAdapter extends XmlAdapter<AliasPasswordEntry [], Map<String, String>> {
 
 		@Override
-		public HashMap<String, String> unmarshal(AliasPasswordEntry [] arg0) throws Exception {
-			HashMap<String, String> values = new HashMap<String, String>();
+		public Map<String, String> unmarshal(AliasPasswordEntry [] arg0) throws Exception {
+			PasswordMap values = new PasswordMap();
 			for (AliasPasswordEntry entry : arg0)
-				values.put(entry.getAlias(), entry.getPassword());
+				values.putCached(entry.getAlias(), entry.password);
 			return values;
 		}
 
@@ -83,7 +231,7 @@ public class KeyStoreManagerConfiguration {
 			for (String key : arg0.keySet()) {
 				AliasPasswordEntry value = new AliasPasswordEntry();
 				value.setAlias(key);
-				value.setPassword(arg0.get(key));
+				value.password = PasswordMap.getCached(arg0, key);
 				values[i++] = value;
 			}
 			return values;
@@ -91,7 +239,8 @@ public class KeyStoreManagerConfiguration {
 	}
 	
 	public static class AliasPasswordEntry {
-		private String alias, password;
+		private String alias;
+		private CachedPassword password;
 
 		public String getAlias() {
 			return alias;
@@ -101,13 +250,24 @@ public class KeyStoreManagerConfiguration {
 			this.alias = alias;
 		}
 
-		@XmlJavaTypeAdapter(value=EncryptionXmlAdapter.class)
+		@XmlTransient
 		public String getPassword() {
-			return password;
+			return password == null ? null : password.getPlain();
 		}
 
 		public void setPassword(String password) {
-			this.password = password;
+			this.password = CachedPassword.plain(password);
+		}
+		
+		@XmlElement(name = "password")
+		@SuppressWarnings("unused")
+		private String getEncryptedPassword() {
+			return password == null ? null : password.getEncrypted();
+		}
+		
+		@SuppressWarnings("unused")
+		private void setEncryptedPassword(String encryptedPassword) {
+			this.password = CachedPassword.encrypted(encryptedPassword);
 		}
 	}
 
@@ -119,27 +279,64 @@ public class KeyStoreManagerConfiguration {
 
 		private URI uri;
 		private String alias;
-		private String password;
+		private volatile CachedPassword password;
 		private StoreType type;
 		
+		/**
+		 * The configuration that indexes this keystore by its alias
+		 */
+		private volatile KeyStoreManagerConfiguration owner;
+		
 		/**
 		 * All the passwords for the private keys (null or non-existent if no password)
+		 * The managed keystore replaces the map on change so it can be read without locking
 		 */
-		private Map<String, String> keyPasswords = new HashMap<String, String>();
+		private volatile Map<String, String> keyPasswords = new PasswordMap();
 		
 		public String getAlias() {
 			return alias;
 		}
 		public void setAlias(String alias) {
+			String previous = this.alias;
 			this.alias = alias;
+			KeyStoreManagerConfiguration owner = this.owner;
+			if (owner != null && (previous == null ? alias != null : !previous.equals(alias)))
+				owner.renamed(this, previous);
 		}
 		
-		@XmlJavaTypeAdapter(value=EncryptionXmlAdapter.class)
+		/**
+		 * The password is decrypted on first use
+		 */
+		@XmlTransient
 		public String getPassword() {
-			return password;
+			CachedPassword password = this.password;
+			return password == null ? null : password.getPlain();
 		}
 		
 		public void setPassword(String password) {
+			this.password = CachedPassword.plain(password);
+		}
+		
+		/**
+		 * The form in which the password is stored, it is only encrypted again if it was changed
+		 */
+		@XmlElement(name = "password")
+		@SuppressWarnings("unused")
+		private String getEncryptedPassword() {
+			CachedPassword password = this.password;
+			return password == null ? null : password.getEncrypted();
+		}
+		
+		@SuppressWarnings("unused")
+		private void setEncryptedPassword(String encryptedPassword) {
+			this.password = CachedPassword.encrypted(encryptedPassword);
+		}
+		
+		CachedPassword getCachedPassword() {
+			return password;
+		}
+		
+		void setCachedPassword(CachedPassword password) {
 			this.password = password;
 		}
 		
@@ -169,34 +366,25 @@ public class KeyStoreManagerConfiguration {
 	}
 	
 	public static KeyStoreManagerConfiguration unmarshal(InputStream input) throws JAXBException {
-		JAXBContext context = JAXBContext.newInstance(KeyStoreManagerConfiguration.class);
-		Unmarshaller unmarshaller = context.createUnmarshaller();
+		Unmarshaller unmarshaller = JAXBContextCache.getUnmarshaller(KeyStoreManagerConfiguration.class);
 		return (KeyStoreManagerConfiguration) unmarshaller.unmarshal(input);
 	}
 	
 	public static KeyStoreManagerConfiguration unmarshal(ReadableResource resource) throws IOException, JAXBException {
-		ReadableContainer<ByteBuffer> data = resource.getReadable();
-		try {
-			return unmarshal(IOUtils.toInputStream(data));
-		}
-		finally {
-			data.close();
-		}
+		return unmarshal(new ByteArrayInputStream(SafeResourceWriter.read(resource)));
 	}
 	
 	public void marshal(OutputStream container) throws JAXBException {
-		JAXBContext context = JAXBContext.newInstance(KeyStoreManagerConfiguration.class);
-		Marshaller marshaller = context.createMarshaller();
+		Marshaller marshaller = JAXBContextCache.getMarshaller(KeyStoreManagerConfiguration.class);
 		marshaller.marshal(this, container);
 	}
 	
+	/**
+	 * The configuration is marshalled in memory first so the resource is never left with partial xml
+	 */
 	public void marshal(WritableResource resource) throws IOException, JAXBException {
-		WritableContainer<ByteBuffer> output = resource.getWritable();
-		try {
-			marshal(IOUtils.toOutputStream(output));
-		}
-		finally {
-			output.close();
-		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshal(output);
+		SafeResourceWriter.write(resource, output.toByteArray());
 	}
 }
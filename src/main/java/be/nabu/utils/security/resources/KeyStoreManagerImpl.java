@@ -17,6 +17,10 @@
 
 package be.nabu.utils.security.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
 import java.io.IOException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -24,31 +28,42 @@ import java.security.NoSuchProviderException;
 import java.security.Principal;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
 import javax.xml.bind.JAXBException;
 
 import be.nabu.libs.resources.ResourceFactory;
 import be.nabu.libs.resources.ResourceUtils;
 import be.nabu.libs.resources.URIUtils;
+import be.nabu.libs.resources.api.FiniteResource;
 import be.nabu.libs.resources.api.ManageableContainer;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.WritableResource;
 import be.nabu.utils.io.ContentTypeMap;
-import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.io.api.ByteBuffer;
-import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.security.KeyStoreHandler;
+import be.nabu.utils.security.SSLContextType;
 import be.nabu.utils.security.SecurityRuntimeException;
+import be.nabu.utils.security.SecurityUtils;
 import be.nabu.utils.security.StoreType;
 import be.nabu.utils.security.api.KeyStoreManager;
 import be.nabu.utils.security.api.ManagedKeyStore;
 import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreReference;
 
 /**
  * This allows you to manage multiple keystores and store settings like passwords etc
@@ -56,11 +71,26 @@ import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreCon
  * @author alex
  *
  */
-public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurationHandler {
+public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurationHandler, Flushable, Closeable {
+	
+	/**
+	 * The container (next to the configuration) that holds the configuration of each keystore once the configuration is split
+	 */
+	private static final String KEYSTORE_CONFIGURATIONS = "keystore-configurations";
 	
 	private KeyStoreManagerConfiguration configuration;
 	
-	private Map<String, ManagedKeyStoreImpl> keystores = new HashMap<String, ManagedKeyStoreImpl>();
+	private Map<String, ManagedKeyStoreImpl> keystores = new ConcurrentHashMap<String, ManagedKeyStoreImpl>();
+	
+	/**
+	 * Serializes the creation and deletion of keystores as well as the writes of the configuration, an older state is never written over a newer one
+	 */
+	private final Object structureLock = new Object();
+	
+	/**
+	 * The keystores that are currently being loaded, concurrent requests for the same alias wait on the same task
+	 */
+	private ConcurrentMap<String, FutureTask<ManagedKeyStoreImpl>> loading = new ConcurrentHashMap<String, FutureTask<ManagedKeyStoreImpl>>();
 	
 	private Principal accessPrincipal;
 	
@@ -68,29 +98,204 @@ public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurati
 	
 	private ResourceFactory resourceFactory;
 	
+	private WriteBehindFlusher flusher;
+	
+	private volatile KeyStoreMetrics metrics = KeyStoreMetrics.NONE;
+	
+	/**
+	 * Identifies this manager on the event bus
+	 */
+	private final String origin = UUID.randomUUID().toString();
+	
+	private volatile KeyStoreEventBus eventBus;
+	
+	private KeyStoreEventBus.Listener eventListener = new KeyStoreEventBus.Listener() {
+		@Override
+		public void handle(KeyStoreEvent event) {
+			if (!origin.equals(event.getOrigin()))
+				KeyStoreManagerImpl.this.handle(event);
+		}
+	};
+	
+	/**
+	 * The keystores whose configuration changed, they are announced once the manager configuration is written
+	 */
+	private Set<String> configured = ConcurrentHashMap.newKeySet();
+	
+	private volatile CertificateIndex certificateIndex;
+	
+	/**
+	 * Whether a binary snapshot of the configuration is kept next to it
+	 */
+	private boolean snapshot;
+	
+	/**
+	 * Opens the manager with the given configuration, an empty configuration is only written if there is none yet.
+	 * Keystores are loaded when they are first requested.
+	 */
 	public static KeyStoreManagerImpl getManager(ManageableContainer<?> parent, String configurationName) throws IOException {
-		WritableResource resource = (WritableResource) parent.getChild(configurationName);
+		Resource resource = parent.getChild(configurationName);
+		// finish a write that was interrupted first, the configuration may have been truncated halfway through
+		if (resource != null)
+			SafeResourceWriter.recover(resource);
+		// an empty resource that could not be recovered is left behind if a previous initial write did not complete
+		// unless another node is writing it right now, then it is read from the complete copy
+		if (resource != null && (SafeResourceWriter.isPending(resource) || !(resource instanceof FiniteResource && ((FiniteResource) resource).getSize() == 0)))
+			return new KeyStoreManagerImpl((ReadableResource) resource);
 		if (resource == null)
-			resource = (WritableResource) parent.create(configurationName, ContentTypeMap.getInstance().getContentTypeFor(configurationName));
+			resource = parent.create(configurationName, ContentTypeMap.getInstance().getContentTypeFor(configurationName));
+		KeyStoreManagerConfiguration configuration = new KeyStoreManagerConfiguration();
 		try {
-			new KeyStoreManagerConfiguration().marshal(resource);
+			configuration.marshal((WritableResource) resource);
 		}
 		catch (JAXBException e) {
 			throw new RuntimeException(e);
 		}
-		return new KeyStoreManagerImpl((ReadableResource) resource);
+		// no need to parse what we just wrote
+		return new KeyStoreManagerImpl((ReadableResource) resource, configuration);
+	}
+	
+	/**
+	 * Opens the manager and starts loading the given keystores in the background on the executor, the others are loaded when they are first requested
+	 */
+	public static KeyStoreManagerImpl getManager(ManageableContainer<?> parent, String configurationName, Collection<String> warmUp, Executor executor) throws IOException {
+		KeyStoreManagerImpl manager = getManager(parent, configurationName);
+		manager.warmUp(warmUp, executor);
+		return manager;
 	}
 	
 	public KeyStoreManagerImpl(ReadableResource resource) throws IOException {
+		this(resource, false);
+	}
+	
+	/**
+	 * With snapshot enabled, the configuration is read from a binary snapshot next to it instead of the xml if it is up to date.
+	 * The snapshot is created if it is missing or outdated and is rewritten whenever the configuration is saved.
+	 */
+	public KeyStoreManagerImpl(ReadableResource resource, boolean snapshot) throws IOException {
+		this.resource = resource;
+		this.snapshot = snapshot;
+		// the snapshot is only used if it matches this content exactly
+		byte [] content = SafeResourceWriter.read(resource);
+		if (snapshot)
+			this.configuration = ConfigurationSnapshot.read(resource, content);
+		if (this.configuration == null) {
+			try {
+				this.configuration = KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(content));
+			}
+			catch (JAXBException e) {
+				throw new IllegalArgumentException("The resource does not point to a valid configuration", e);
+			}
+			if (snapshot)
+				writeSnapshot(content, configuration);
+		}
+		if (isSplit())
+			loadKeyStoreConfigurations();
+	}
+	
+	/**
+	 * The snapshot is only an optimization, if it can not be written the xml is used on the next start
+	 */
+	private void writeSnapshot(byte [] content, KeyStoreManagerConfiguration configuration) {
 		try {
-			this.configuration = KeyStoreManagerConfiguration.unmarshal(resource);
+			ConfigurationSnapshot.write(resource, content, configuration);
 		}
-		catch (JAXBException e) {
-			throw new IllegalArgumentException("The resource does not point to a valid configuration", e);
+		catch (IOException e) {
+			// ignore
+		}
+		catch (RuntimeException e) {
+			// ignore
 		}
+	}
+	
+	private KeyStoreManagerImpl(ReadableResource resource, KeyStoreManagerConfiguration configuration) {
+		this.configuration = configuration;
 		this.resource = resource;
 	}
 	
+	/**
+	 * The outcome of a preload, per alias either the loaded keystore or the reason it could not be loaded
+	 */
+	public static class Preload {
+		private Map<String, ManagedKeyStoreImpl> keystores = new LinkedHashMap<String, ManagedKeyStoreImpl>();
+		private Map<String, Exception> failures = new LinkedHashMap<String, Exception>();
+		
+		public Map<String, ManagedKeyStoreImpl> getKeyStores() {
+			return keystores;
+		}
+		public Map<String, Exception> getFailures() {
+			return failures;
+		}
+		public boolean isSuccessful() {
+			return failures.isEmpty();
+		}
+	}
+	
+	/**
+	 * Loads all the configured keystores concurrently on the executor and waits for them
+	 */
+	public Preload preload(Executor executor) {
+		return preload(listKeystores(), executor);
+	}
+	
+	/**
+	 * Loads the given keystores concurrently on the executor and waits for them.
+	 * Resolving, reading and decrypting a keystore is done on the executor, a failure for one alias does not stop the others.
+	 * Keystores that are already loaded are returned as is, an alias that is being loaded by another thread shares that load.
+	 */
+	public Preload preload(Collection<String> aliases, Executor executor) {
+		Map<String, FutureTask<ManagedKeyStoreImpl>> tasks = new LinkedHashMap<String, FutureTask<ManagedKeyStoreImpl>>();
+		for (final String alias : aliases) {
+			if (tasks.containsKey(alias))
+				continue;
+			FutureTask<ManagedKeyStoreImpl> task = new FutureTask<ManagedKeyStoreImpl>(new Callable<ManagedKeyStoreImpl>() {
+				@Override
+				public ManagedKeyStoreImpl call() throws Exception {
+					return getKeyStore(alias);
+				}
+			});
+			tasks.put(alias, task);
+			executor.execute(task);
+		}
+		Preload preload = new Preload();
+		for (Map.Entry<String, FutureTask<ManagedKeyStoreImpl>> entry : tasks.entrySet()) {
+			try {
+				ManagedKeyStoreImpl keystore = getLoaded(entry.getValue());
+				if (keystore == null)
+					preload.failures.put(entry.getKey(), new IllegalArgumentException("No keystore configured with alias: " + entry.getKey()));
+				else
+					preload.keystores.put(entry.getKey(), keystore);
+			}
+			catch (IOException e) {
+				preload.failures.put(entry.getKey(), e);
+			}
+			catch (RuntimeException e) {
+				preload.failures.put(entry.getKey(), e);
+			}
+		}
+		return preload;
+	}
+	
+	/**
+	 * Loads the given keystores on the executor without waiting for them.
+	 * A keystore that fails to load is not cached, the error is thrown again when it is requested.
+	 */
+	public void warmUp(Collection<String> aliases, Executor executor) {
+		for (final String alias : aliases) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						getKeyStore(alias);
+					}
+					catch (Exception e) {
+						// reported when the keystore is requested
+					}
+				}
+			});
+		}
+	}
+	
 	public List<String> listKeystores() {
 		List<String> list = new ArrayList<String>();
 		for (KeyStoreConfiguration keystoreConfiguration : configuration.getKeyStores())
@@ -99,88 +304,449 @@ public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurati
 	}
 	
 	public KeyStoreConfiguration getKeyStoreConfiguration(String alias) {
-		for (KeyStoreConfiguration keystoreConfiguration : configuration.getKeyStores()) {
-			if (keystoreConfiguration.getAlias().equals(alias))
-				return keystoreConfiguration;
+		return configuration.getKeyStore(alias);
+	}
+	
+	/**
+	 * Whether the configuration of each keystore is stored in a resource of its own
+	 */
+	public boolean isSplit() {
+		return configuration.getKeyStoreConfigurations() != null;
+	}
+	
+	/**
+	 * Moves the configuration of each keystore to a resource of its own, the manager configuration only refers to them afterwards.
+	 * A change to a keystore (like a new key password) then only rewrites the configuration of that keystore instead of the entire manager.
+	 * Note that older versions of this library can not read the split layout.
+	 */
+	public void split() throws IOException {
+		synchronized(configuration) {
+			if (isSplit())
+				return;
+			List<KeyStoreReference> references = new ArrayList<KeyStoreReference>();
+			for (KeyStoreConfiguration keystore : configuration.getKeyStores()) {
+				KeyStoreReference reference = newReference(keystore.getAlias(), references);
+				writeKeyStoreConfiguration(keystore, reference.getName());
+				references.add(reference);
+			}
+			// the manager only refers to them once they are all written
+			configuration.setKeyStoreConfigurations(references);
+		}
+		// written immediately, a pending write-behind would leave the old layout on disk
+		writeConfiguration();
+	}
+	
+	private void loadKeyStoreConfigurations() throws IOException {
+		ManageableContainer<?> container = getKeyStoreConfigurationContainer();
+		// indexed in one go once they are all read
+		List<KeyStoreConfiguration> keystores = new ArrayList<KeyStoreConfiguration>(configuration.getKeyStores());
+		for (KeyStoreReference reference : configuration.getKeyStoreConfigurations()) {
+			Resource child = container.getChild(reference.getName());
+			// a configuration is written before it is referenced and no longer referenced before it is deleted, it is only missing if removed by hand
+			if (child instanceof ReadableResource) {
+				try {
+					keystores.add(new ResourceConfigurationHandler(child).unmarshalLocal((ReadableResource) child));
+				}
+				catch (JAXBException e) {
+					throw new IllegalArgumentException("The resource " + reference.getName() + " does not contain a valid keystore configuration", e);
+				}
+			}
+		}
+		configuration.setKeyStores(keystores);
+	}
+	
+	private ManageableContainer<?> getKeyStoreConfigurationContainer() throws IOException {
+		Resource container = ResourceUtils.mkdir(URIUtils.getChild(URIUtils.getParent(ResourceUtils.getURI(resource)), KEYSTORE_CONFIGURATIONS), accessPrincipal);
+		if (!(container instanceof ManageableContainer))
+			throw new IOException("Can not store the keystore configurations in " + KEYSTORE_CONFIGURATIONS);
+		return (ManageableContainer<?>) container;
+	}
+	
+	/**
+	 * A reference with a resource name that is derived from the alias and not yet in use
+	 */
+	private static KeyStoreReference newReference(String alias, List<KeyStoreReference> references) {
+		String name = alias.replaceAll("[^\\w.-]+", "_");
+		String candidate = name + ".xml";
+		for (int i = 1; isReferenced(candidate, references); i++)
+			candidate = name + "-" + i + ".xml";
+		KeyStoreReference reference = new KeyStoreReference();
+		reference.setAlias(alias);
+		reference.setName(candidate);
+		return reference;
+	}
+	
+	private static boolean isReferenced(String name, List<KeyStoreReference> references) {
+		for (KeyStoreReference reference : references) {
+			if (reference.getName().equals(name))
+				return true;
+		}
+		return false;
+	}
+	
+	private KeyStoreReference getReference(String alias) {
+		for (KeyStoreReference reference : configuration.getKeyStoreConfigurations()) {
+			if (reference.getAlias().equals(alias))
+				return reference;
 		}
 		return null;
 	}
 	
+	private void writeKeyStoreConfiguration(KeyStoreConfiguration keystore, String name) throws IOException {
+		long started = System.nanoTime();
+		boolean succeeded = false;
+		try {
+			ManageableContainer<?> container = getKeyStoreConfigurationContainer();
+			Resource child = container.getChild(name);
+			if (child == null)
+				child = container.create(name, ContentTypeMap.getInstance().getContentTypeFor(name));
+			// marshalled here rather than straight to the resource so we know the size
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			new ResourceConfigurationHandler(child).marshal(keystore, output);
+			if (!(child instanceof WritableResource))
+				throw new IOException("The keystore configuration " + name + " is not writable");
+			SafeResourceWriter.write((WritableResource) child, output.toByteArray());
+			metrics.written(keystore.getAlias(), KeyStoreMetrics.Operation.SAVE_CONFIGURATION, output.size());
+			succeeded = true;
+		}
+		catch (JAXBException e) {
+			throw new IOException(e);
+		}
+		finally {
+			metrics.timed(keystore.getAlias(), KeyStoreMetrics.Operation.SAVE_CONFIGURATION, System.nanoTime() - started, succeeded);
+		}
+	}
+	
+	/**
+	 * Persists a new or changed keystore configuration, once split only the configuration of that keystore is written (and the manager if it is new)
+	 */
+	private void saveKeyStoreConfiguration(final KeyStoreConfiguration keystore) throws IOException {
+		if (!isSplit()) {
+			if (eventBus != null)
+				configured.add(keystore.getAlias());
+			saveConfiguration();
+			return;
+		}
+		final KeyStoreReference reference;
+		boolean added = false;
+		synchronized(configuration) {
+			KeyStoreReference existing = getReference(keystore.getAlias());
+			if (existing == null) {
+				existing = newReference(keystore.getAlias(), configuration.getKeyStoreConfigurations());
+				configuration.getKeyStoreConfigurations().add(existing);
+				added = true;
+			}
+			reference = existing;
+		}
+		// a new keystore is written right away, it must exist before the manager configuration refers to it
+		if (flusher == null || added) {
+			writeKeyStoreConfiguration(keystore, reference.getName());
+			if (!added)
+				publish(keystore.getAlias(), KeyStoreEvent.Type.CONFIGURED);
+		}
+		else {
+			flusher.schedule(keystore, new WriteBehindFlusher.Write() {
+				@Override
+				public void write() throws IOException {
+					writeKeyStoreConfiguration(keystore, reference.getName());
+					publish(keystore.getAlias(), KeyStoreEvent.Type.CONFIGURED);
+				}
+			});
+		}
+		// the others can only find a new keystore once it is referenced
+		if (added) {
+			if (eventBus != null)
+				configured.add(keystore.getAlias());
+			saveConfiguration();
+		}
+	}
+	
 	void saveConfiguration() throws IOException {
+		if (flusher == null)
+			writeConfiguration();
+		else {
+			flusher.schedule(this, new WriteBehindFlusher.Write() {
+				@Override
+				public void write() throws IOException {
+					writeConfiguration();
+				}
+			});
+		}
+	}
+	
+	private void writeConfiguration() throws IOException {
+		synchronized(structureLock) {
+			writeConfigurationUnlocked();
+		}
+	}
+	
+	private void writeConfigurationUnlocked() throws IOException {
 		if (resource instanceof WritableResource) {
+			long started = System.nanoTime();
+			boolean succeeded = false;
 			try {
-				configuration.marshal((WritableResource) resource);
+				KeyStoreManagerConfiguration written = configuration;
+				// once split, only the references are written
+				if (isSplit()) {
+					written = new KeyStoreManagerConfiguration();
+					written.setNewKeystoreContainer(configuration.getNewKeystoreContainer());
+					synchronized(configuration) {
+						written.setKeyStoreConfigurations(new ArrayList<KeyStoreReference>(configuration.getKeyStoreConfigurations()));
+					}
+				}
+				// marshalled here rather than straight to the resource so we know the size
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				written.marshal(output);
+				SafeResourceWriter.write((WritableResource) resource, output.toByteArray());
+				if (snapshot)
+					writeSnapshot(output.toByteArray(), written);
+				metrics.written(null, KeyStoreMetrics.Operation.SAVE_CONFIGURATION, output.size());
+				succeeded = true;
+				for (String alias : configured) {
+					configured.remove(alias);
+					publish(alias, KeyStoreEvent.Type.CONFIGURED);
+				}
 			}
 			catch (JAXBException e) {
 				throw new RuntimeException(e);
 			}
+			finally {
+				metrics.timed(null, KeyStoreMetrics.Operation.SAVE_CONFIGURATION, System.nanoTime() - started, succeeded);
+			}
 		}
 	}
 	
 	@Override
 	public ManagedKeyStoreImpl getKeyStore(String alias) throws IOException {
-		if (!keystores.containsKey(alias)) {
-			ManagedKeyStoreImpl implementation = null;
-			for (KeyStoreConfiguration keystoreConfiguration : configuration.getKeyStores()) {
-				if (keystoreConfiguration.getAlias().equals(alias)) {
-					KeyStoreHandler handler = null;
-					Resource resource = getResourceFactory().resolve(keystoreConfiguration.getUri(), accessPrincipal);
-					try {
-						// create if it doesn't exist
-						if (resource == null) {
-							Resource parent = ResourceUtils.mkdir(URIUtils.getParent(keystoreConfiguration.getUri()), accessPrincipal);
-							if (parent == null)
-								throw new IOException("Can not find or create parent of " + keystoreConfiguration.getUri());
-							StoreType storeType = StoreType.findByContentType(ContentTypeMap.getInstance().getContentTypeFor(keystoreConfiguration.getUri().getPath()));
-							if (storeType == null)
-								throw new IllegalArgumentException("Could not determine the store type of " + keystoreConfiguration.getUri());
-							resource = ((ManageableContainer<?>) parent).create(URIUtils.getName(keystoreConfiguration.getUri()), storeType.getContentType());
-							if (!(resource instanceof WritableResource))
-								throw new IOException("The resource at " + keystoreConfiguration.getUri() + " is not writable");
-							handler = KeyStoreHandler.create(keystoreConfiguration.getPassword(), storeType);
-							// do an initial save to store it in its empty state, otherwise there is a file with 0 bytes which will not be parseable upon a next run
-							WritableContainer<ByteBuffer> output = ((WritableResource) resource).getWritable();
-							try {
-								handler.save(IOUtils.toOutputStream(output), keystoreConfiguration.getPassword());
-							}
-							finally {
-								output.close();
-							}
-						}
-						else if (!(resource instanceof ReadableResource))
-							throw new IOException("The resource at " + keystoreConfiguration.getUri() + " is not readable");
-						else {
-							ReadableContainer<ByteBuffer> input = ((ReadableResource) resource).getReadable();
-							try {
-								handler = KeyStoreHandler.load(IOUtils.toInputStream(input), keystoreConfiguration.getPassword(), StoreType.JKS);
-							}
-							finally {
-								input.close();
-							}
-						}
-						implementation = new ManagedKeyStoreImpl(this, resource, keystoreConfiguration, handler);
-						break;
-					}
-					catch (NoSuchAlgorithmException e) {
-						throw new SecurityRuntimeException(e);
-					}
-					catch (CertificateException e) {
-						throw new SecurityRuntimeException(e);
-					} 
-					catch (KeyStoreException e) {
-						throw new SecurityRuntimeException(e);
-					}
-					catch (NoSuchProviderException e) {
-						throw new SecurityRuntimeException(e);
-					}
+		// fast path: already loaded keystores are served without locking
+		ManagedKeyStoreImpl implementation = keystores.get(alias);
+		if (implementation != null)
+			return implementation;
+		final KeyStoreConfiguration keystoreConfiguration = getKeyStoreConfiguration(alias);
+		if (keystoreConfiguration == null)
+			return null;
+		// single flight: only one thread loads a given alias, the others wait for its result
+		FutureTask<ManagedKeyStoreImpl> task = new FutureTask<ManagedKeyStoreImpl>(new Callable<ManagedKeyStoreImpl>() {
+			@Override
+			public ManagedKeyStoreImpl call() throws Exception {
+				long started = System.nanoTime();
+				boolean succeeded = false;
+				try {
+					ManagedKeyStoreImpl implementation = loadKeyStore(keystoreConfiguration);
+					succeeded = true;
+					return implementation;
+				}
+				finally {
+					metrics.timed(keystoreConfiguration.getAlias(), KeyStoreMetrics.Operation.LOAD, System.nanoTime() - started, succeeded);
 				}
 			}
-			if (implementation != null)
+		});
+		FutureTask<ManagedKeyStoreImpl> existing = loading.putIfAbsent(alias, task);
+		if (existing == null) {
+			try {
+				// it may have been loaded in between our cache check and the registration of the task
+				implementation = keystores.get(alias);
+				if (implementation != null)
+					return implementation;
+				task.run();
+				implementation = getLoaded(task);
 				keystores.put(alias, implementation);
+				// a delete removes the configuration before it evicts the cache, if it happened during the load we may have put it back
+				if (!isCurrent(implementation)) {
+					keystores.remove(alias, implementation);
+					return null;
+				}
+				return implementation;
+			}
+			finally {
+				loading.remove(alias, task);
+			}
+		}
+		implementation = getLoaded(existing);
+		return isCurrent(implementation) ? implementation : null;
+	}
+	
+	/**
+	 * Whether the keystore still belongs to the configured keystore with its alias, it doesn't if that was deleted (and possibly recreated) in the meantime
+	 */
+	private boolean isCurrent(ManagedKeyStoreImpl keystore) {
+		return getKeyStoreConfiguration(keystore.getConfiguration().getAlias()) == keystore.getConfiguration();
+	}
+	
+	private ManagedKeyStoreImpl getLoaded(FutureTask<ManagedKeyStoreImpl> task) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	private ManagedKeyStoreImpl loadKeyStore(KeyStoreConfiguration keystoreConfiguration) throws IOException {
+		KeyStoreHandler handler = null;
+		ResourceFingerprint fingerprint = null;
+		Resource resource = getResourceFactory().resolve(keystoreConfiguration.getUri(), accessPrincipal);
+		try {
+			// create if it doesn't exist
+			if (resource == null) {
+				Resource parent = ResourceUtils.mkdir(URIUtils.getParent(keystoreConfiguration.getUri()), accessPrincipal);
+				if (parent == null)
+					throw new IOException("Can not find or create parent of " + keystoreConfiguration.getUri());
+				StoreType storeType = keystoreConfiguration.getType();
+				if (storeType == null)
+					storeType = StoreType.findByContentType(ContentTypeMap.getInstance().getContentTypeFor(keystoreConfiguration.getUri().getPath()));
+				if (storeType == null)
+					throw new IllegalArgumentException("Could not determine the store type of " + keystoreConfiguration.getUri());
+				keystoreConfiguration.setType(storeType);
+				resource = ((ManageableContainer<?>) parent).create(URIUtils.getName(keystoreConfiguration.getUri()), storeType.getContentType());
+				if (!(resource instanceof WritableResource))
+					throw new IOException("The resource at " + keystoreConfiguration.getUri() + " is not writable");
+				handler = KeyStoreHandler.create(keystoreConfiguration.getPassword(), storeType);
+				// do an initial save to store it in its empty state, otherwise there is a file with 0 bytes which will not be parseable upon a next run
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				handler.save(content, keystoreConfiguration.getPassword());
+				SafeResourceWriter.write((WritableResource) resource, content.toByteArray());
+				fingerprint = ResourceFingerprint.of(resource, content.toByteArray());
+			}
+			else if (!(resource instanceof ReadableResource))
+				throw new IOException("The resource at " + keystoreConfiguration.getUri() + " is not readable");
+			else {
+				// a write that was interrupted is finished, one in progress is read from its complete copy
+				byte [] content = SafeResourceWriter.read((ReadableResource) resource);
+				StoreType storeType = getStoreType(keystoreConfiguration, resource, content);
+				// remember it so later loads (and reloads) go straight to the right provider, it is persisted with the next configuration save
+				if (keystoreConfiguration.getType() != storeType)
+					keystoreConfiguration.setType(storeType);
+				handler = KeyStoreHandler.load(new ByteArrayInputStream(content), keystoreConfiguration.getPassword(), storeType);
+				// remember which version was loaded so a watcher can detect external changes
+				fingerprint = ResourceFingerprint.of(resource, content);
+			}
+			ManagedKeyStoreImpl implementation = new ManagedKeyStoreImpl(this, resource, keystoreConfiguration, handler);
+			implementation.setFingerprint(fingerprint);
+			implementation.setFlusher(flusher);
+			implementation.setMetrics(metrics);
+			implementation.setEventBus(eventBus, origin);
+			implementation.setCertificateIndex(certificateIndex);
+			return implementation;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new SecurityRuntimeException(e);
+		}
+		catch (CertificateException e) {
+			throw new SecurityRuntimeException(e);
+		} 
+		catch (KeyStoreException e) {
+			throw new SecurityRuntimeException(e);
+		}
+		catch (NoSuchProviderException e) {
+			throw new SecurityRuntimeException(e);
+		}
+	}
+	
+	/**
+	 * The content wins as keystores are often configured or named as the wrong type (e.g. a pkcs12 in a .jks), then the configured type and the content type.
+	 * If nothing matches, it is assumed to be a jks as before.
+	 */
+	static StoreType getStoreType(KeyStoreConfiguration keystoreConfiguration, Resource resource, byte [] content) {
+		StoreType storeType = getStoreType(content);
+		if (storeType == null)
+			storeType = keystoreConfiguration.getType();
+		if (storeType == null && resource.getContentType() != null)
+			storeType = StoreType.findByContentType(resource.getContentType());
+		if (storeType == null && keystoreConfiguration.getUri() != null)
+			storeType = StoreType.findByContentType(ContentTypeMap.getInstance().getContentTypeFor(keystoreConfiguration.getUri().getPath()));
+		return storeType == null ? StoreType.JKS : storeType;
+	}
+	
+	/**
+	 * Recognizes the store type from the magic bytes: jks and jceks have a fixed magic number, pkcs12 is a der encoded sequence
+	 */
+	static StoreType getStoreType(byte [] content) {
+		if (content == null || content.length < 4)
+			return null;
+		int magic = ((content[0] & 0xff) << 24) | ((content[1] & 0xff) << 16) | ((content[2] & 0xff) << 8) | (content[3] & 0xff);
+		if (magic == 0xfeedfeed)
+			return getStoreType("JKS");
+		else if (magic == 0xcececece)
+			return getStoreType("JCEKS");
+		else if (content[0] == 0x30)
+			return getStoreType("PKCS12");
+		return null;
+	}
+	
+	private static StoreType getStoreType(String name) {
+		for (StoreType storeType : StoreType.values()) {
+			if (storeType.name().equalsIgnoreCase(name))
+				return storeType;
 		}
+		return null;
+	}
+	
+	/**
+	 * The keystores that have been loaded so far
+	 */
+	Collection<ManagedKeyStoreImpl> getLoadedKeyStores() {
+		return keystores.values();
+	}
+	
+	/**
+	 * The keystore with the given alias if it is loaded, it is not loaded if it isn't
+	 */
+	ManagedKeyStoreImpl getLoadedKeyStore(String alias) {
 		return keystores.get(alias);
 	}
 	
+	/**
+	 * A trust manager that trusts the certificates of all the given keystores, it follows the changes to those keystores
+	 */
+	public CompositeTrustManager newTrustManager(Collection<String> aliases) {
+		return new CompositeTrustManager(this, aliases);
+	}
+	
+	/**
+	 * A context that trusts the certificates of all the given keystores and uses the keys of the given keystore (if any).
+	 * Unlike a context from a single keystore it is not cached, the trust manager it uses does follow the changes to the keystores.
+	 */
+	public SSLContext newContext(SSLContextType type, String keyStoreAlias, Collection<String> trustedAliases) throws IOException, KeyStoreException {
+		KeyManager [] keyManagers = null;
+		if (keyStoreAlias != null) {
+			ManagedKeyStoreImpl keystore = getKeyStore(keyStoreAlias);
+			if (keystore == null)
+				throw new IllegalArgumentException("No keystore configured with alias: " + keyStoreAlias);
+			try {
+				keyManagers = keystore.getKeyManagers();
+			}
+			catch (Exception e) {
+				throw new KeyStoreException("Could not create the key managers for " + keyStoreAlias, e);
+			}
+		}
+		try {
+			return SecurityUtils.createSSLContext(type, keyManagers, new TrustManager[] { newTrustManager(trustedAliases) });
+		}
+		catch (Exception e) {
+			throw new KeyStoreException("Failed to create new context", e);
+		}
+	}
+	
 	public ResourceFactory getResourceFactory() {
 		if (resourceFactory == null)
 			resourceFactory = ResourceFactory.getInstance();
@@ -196,23 +762,26 @@ public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurati
 		if (!(resource.getParent() instanceof ManageableContainer))
 			throw new IOException("Can not create keystores");
 
-		ManagedKeyStore existing = getKeyStore(alias);
-		if (existing != null)
-			throw new IllegalArgumentException("A keystore with this alias already exists: " + alias);
-		
 		KeyStoreConfiguration newKeyStore = new KeyStoreConfiguration();
 		newKeyStore.setAlias(alias);
 		newKeyStore.setPassword(password);
+		newKeyStore.setType(type);
 		newKeyStore.setUri(URIUtils.getChild(
 			URIUtils.getParent(ResourceUtils.getURI(resource)),
 			alias + "." + ContentTypeMap.getInstance().getExtensionFor(type.getContentType())
 		));
 		
-		configuration.getKeyStores().add(newKeyStore);
-		saveConfiguration();
-		
-		// it will be automatically created by this method
-		return getKeyStore(alias);
+		// the check and the registration are atomic, concurrent creates of the same alias can not both succeed
+		synchronized(structureLock) {
+			if (getKeyStoreConfiguration(alias) != null)
+				throw new IllegalArgumentException("A keystore with this alias already exists: " + alias);
+			configuration.putKeyStore(newKeyStore);
+			saveKeyStoreConfiguration(newKeyStore);
+			invalidate(alias);
+			
+			// it will be automatically created by this method
+			return getKeyStore(alias);
+		}
 	}
 
 	public Principal getAccessPrincipal() {
@@ -225,26 +794,249 @@ public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurati
 
 	@Override
 	public void deleteKeyStore(String alias) throws IOException {
-		Iterator<KeyStoreConfiguration> iterator = configuration.getKeyStores().iterator();
-		while (iterator.hasNext()) {
-			KeyStoreConfiguration keystoreConfiguration = iterator.next();
-			if (keystoreConfiguration.getAlias().equals(alias)) {
-				// delete the actual resource if any
-				Resource resource = getResourceFactory().resolve(keystoreConfiguration.getUri(), accessPrincipal);
-				if (resource != null) {
-					if (!(resource.getParent() instanceof ManageableContainer))
-						throw new IOException("Can not delete " + keystoreConfiguration.getUri());
-					((ManageableContainer<?>) resource.getParent()).delete(URIUtils.getName(keystoreConfiguration.getUri()));
+		synchronized(structureLock) {
+			deleteKeyStoreUnlocked(alias);
+		}
+	}
+	
+	private void deleteKeyStoreUnlocked(String alias) throws IOException {
+		KeyStoreConfiguration keystoreConfiguration = configuration.getKeyStore(alias);
+		if (keystoreConfiguration != null) {
+			// delete the actual resource if any
+			Resource resource = getResourceFactory().resolve(keystoreConfiguration.getUri(), accessPrincipal);
+			if (resource != null) {
+				if (!(resource.getParent() instanceof ManageableContainer))
+					throw new IOException("Can not delete " + keystoreConfiguration.getUri());
+				((ManageableContainer<?>) resource.getParent()).delete(URIUtils.getName(keystoreConfiguration.getUri()));
+			}
+			// delete the configuration option
+			configuration.removeKeyStore(alias);
+			KeyStoreReference reference = null;
+			if (isSplit()) {
+				synchronized(configuration) {
+					reference = getReference(alias);
+					if (reference != null)
+						configuration.getKeyStoreConfigurations().remove(reference);
+				}
+			}
+			// saved right away rather than behind, the others are told about the delete below and must no longer find it in the stored configuration
+			// a pending write of the configuration is covered by this one
+			if (flusher != null)
+				flusher.cancel(this);
+			writeConfigurationUnlocked();
+			// the configuration of the keystore itself is only removed once it is no longer referenced
+			if (reference != null) {
+				if (flusher != null)
+					flusher.cancel(keystoreConfiguration);
+				getKeyStoreConfigurationContainer().delete(reference.getName());
+			}
+			// delete the cached keystore (if any)
+			ManagedKeyStoreImpl cached = keystores.remove(alias);
+			// make sure a pending write does not recreate it
+			if (cached != null && cached.getFlusher() != null)
+				cached.getFlusher().cancel(cached);
+			CertificateIndex certificateIndex = this.certificateIndex;
+			if (certificateIndex != null)
+				certificateIndex.remove(alias);
+			publish(alias, KeyStoreEvent.Type.DELETED);
+		}
+	}
+	
+	private void publish(String alias, KeyStoreEvent.Type type) {
+		KeyStoreEventBus eventBus = this.eventBus;
+		if (eventBus != null)
+			eventBus.publish(new KeyStoreEvent(origin, alias, type));
+	}
+	
+	/**
+	 * Applies a change made by another manager, only the keystore with the alias of the event is affected.
+	 * A keystore whose content changed is reloaded in place, a keystore whose configuration changed is evicted and loaded again when it is next requested.
+	 */
+	void handle(KeyStoreEvent event) {
+		String alias = event.getAlias();
+		try {
+			if (event.getType() == KeyStoreEvent.Type.CHANGED) {
+				ManagedKeyStoreImpl loaded = keystores.get(alias);
+				if (loaded != null)
+					loaded.reload();
+			}
+			else if (event.getType() == KeyStoreEvent.Type.CONFIGURED) {
+				KeyStoreConfiguration keystore = readKeyStoreConfiguration(alias);
+				if (keystore == null)
+					forget(alias);
+				else {
+					configuration.putKeyStore(keystore);
+					keystores.remove(alias);
+					invalidate(alias);
+					// loaded again here so lookups in the index never have to
+					if (certificateIndex != null)
+						getKeyStore(alias);
+				}
+			}
+			else if (event.getType() == KeyStoreEvent.Type.DELETED)
+				forget(alias);
+		}
+		catch (IOException e) {
+			// loaded from storage again when it is next requested
+			keystores.remove(alias);
+		}
+		catch (JAXBException e) {
+			keystores.remove(alias);
+		}
+		catch (RuntimeException e) {
+			keystores.remove(alias);
+		}
+	}
+	
+	/**
+	 * Reads the current configuration of a single keystore from storage, null if it no longer exists
+	 */
+	private KeyStoreConfiguration readKeyStoreConfiguration(String alias) throws IOException, JAXBException {
+		if (!isSplit()) {
+			// only the keystore we need is bound
+			return StreamingConfiguration.getKeyStore(new ByteArrayInputStream(SafeResourceWriter.read(resource)), alias);
+		}
+		// the index is small, the reference may be new or have been renamed
+		KeyStoreReference reference = null;
+		List<KeyStoreReference> references = KeyStoreManagerConfiguration.unmarshal(resource).getKeyStoreConfigurations();
+		if (references != null) {
+			for (KeyStoreReference candidate : references) {
+				if (alias.equals(candidate.getAlias()))
+					reference = candidate;
+			}
+		}
+		if (reference == null)
+			return null;
+		synchronized(configuration) {
+			KeyStoreReference existing = getReference(alias);
+			if (existing != null)
+				configuration.getKeyStoreConfigurations().remove(existing);
+			configuration.getKeyStoreConfigurations().add(reference);
+		}
+		Resource child = getKeyStoreConfigurationContainer().getChild(reference.getName());
+		return child instanceof ReadableResource ? new ResourceConfigurationHandler(child).unmarshalLocal((ReadableResource) child) : null;
+	}
+	
+	/**
+	 * Drops a keystore that was deleted by another manager, the resources themselves are already gone
+	 */
+	private void forget(String alias) {
+		configuration.removeKeyStore(alias);
+		if (isSplit()) {
+			synchronized(configuration) {
+				KeyStoreReference reference = getReference(alias);
+				if (reference != null)
+					configuration.getKeyStoreConfigurations().remove(reference);
+			}
+		}
+		ManagedKeyStoreImpl cached = keystores.remove(alias);
+		if (cached != null && cached.getFlusher() != null)
+			cached.getFlusher().cancel(cached);
+		CertificateIndex certificateIndex = this.certificateIndex;
+		if (certificateIndex != null)
+			certificateIndex.remove(alias);
+	}
+	
+	private void invalidate(String alias) {
+		CertificateIndex certificateIndex = this.certificateIndex;
+		if (certificateIndex != null)
+			certificateIndex.invalidate(alias);
+	}
+	
+	/**
+	 * An index of the certificates in all the keystores of this manager, it is built on first use by loading every keystore.
+	 * From then on it is kept up to date by the keystores themselves, only a keystore that changed is indexed again (from memory).
+	 */
+	public CertificateIndex getCertificateIndex() {
+		return getCertificateIndex(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+	
+	/**
+	 * Builds the index (if it does not exist yet) by preloading all the keystores on the executor, lookups never have to read from storage.
+	 * Keystores that could not be loaded are reported in the failures of the index.
+	 */
+	public CertificateIndex getCertificateIndex(Executor executor) {
+		if (certificateIndex == null) {
+			synchronized(this) {
+				if (certificateIndex == null) {
+					CertificateIndex index = new CertificateIndex(this);
+					Preload preload = preload(executor);
+					for (ManagedKeyStoreImpl keystore : preload.getKeyStores().values())
+						keystore.setCertificateIndex(index);
+					for (Map.Entry<String, Exception> failure : preload.getFailures().entrySet())
+						index.failed(failure.getKey(), failure.getValue());
+					index.refresh();
+					certificateIndex = index;
+					// keystores that were loaded (again) while we were building pick it up here or from the field
+					for (ManagedKeyStoreImpl keystore : keystores.values())
+						keystore.setCertificateIndex(index);
 				}
-				// delete the configuration option
-				iterator.remove();
-				// save the changes to config
-				saveConfiguration();
-				// delete the cached keystore (if any)
-				keystores.remove(alias);
-				break;
 			}
 		}
+		return certificateIndex;
+	}
+
+	public WriteBehindFlusher getFlusher() {
+		return flusher;
+	}
+
+	/**
+	 * Enables write-behind for the configuration and all the keystores of this manager, set to null to write synchronously again
+	 */
+	public void setFlusher(WriteBehindFlusher flusher) {
+		this.flusher = flusher;
+		for (ManagedKeyStoreImpl keystore : keystores.values())
+			keystore.setFlusher(flusher);
+	}
+	
+	public KeyStoreMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Records the timings, sizes and cache statistics of the manager and all its keystores, set to null to stop recording
+	 */
+	public void setMetrics(KeyStoreMetrics metrics) {
+		this.metrics = metrics == null ? KeyStoreMetrics.NONE : metrics;
+		for (ManagedKeyStoreImpl keystore : keystores.values())
+			keystore.setMetrics(metrics);
+	}
+	
+	public KeyStoreEventBus getEventBus() {
+		return eventBus;
+	}
+
+	/**
+	 * Keeps this manager in sync with other managers (usually on other nodes) that use the same storage, set to null to stop.
+	 * Changes are announced once they are written and the others only reload or evict the keystore that changed.
+	 */
+	public void setEventBus(KeyStoreEventBus eventBus) {
+		if (this.eventBus != null)
+			this.eventBus.unsubscribe(eventListener);
+		this.eventBus = eventBus;
+		if (eventBus != null)
+			eventBus.subscribe(eventListener);
+		for (ManagedKeyStoreImpl keystore : keystores.values())
+			keystore.setEventBus(eventBus, origin);
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		if (flusher != null)
+			flusher.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (eventBus != null)
+			eventBus.unsubscribe(eventListener);
+		if (flusher != null)
+			flusher.close();
 	}
 
 	public KeyStoreManagerConfiguration getConfiguration() {
@@ -253,17 +1045,7 @@ public class KeyStoreManagerImpl implements KeyStoreManager, KeyStoreConfigurati
 
 	@Override
 	public void save(KeyStoreConfiguration keystore) throws IOException {
-		boolean found = false;
-		for (int i = 0; i < configuration.getKeyStores().size(); i++) {
-			if (configuration.getKeyStores().get(i).getAlias().equals(keystore.getAlias())) {
-				configuration.getKeyStores().set(i, keystore);
-				found = true;
-				break;
-			}
-		}
-		if (!found) {
-			configuration.getKeyStores().add(keystore);
-		}
-		saveConfiguration();
+		configuration.putKeyStore(keystore);
+		saveKeyStoreConfiguration(keystore);
 	}
 }
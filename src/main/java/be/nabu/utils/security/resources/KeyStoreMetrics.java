@@ -0,0 +1,67 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+/**
+ * Receives measurements of the keystore operations so they can be bridged to any metrics or tracing stack.
+ * Implementations are called on the thread doing the work and should return quickly.
+ * The alias is null for operations on the manager itself (like saving its configuration).
+ */
+public interface KeyStoreMetrics {
+
+	public enum Operation {
+		LOAD,
+		RELOAD,
+		SAVE,
+		SAVE_CONFIGURATION,
+		SSL_CONTEXT
+	}
+
+	/**
+	 * Used when no metrics are configured
+	 */
+	public static final KeyStoreMetrics NONE = new KeyStoreMetrics() {
+		@Override
+		public void timed(String alias, Operation operation, long nanos, boolean succeeded) {
+			// ignored
+		}
+		@Override
+		public void written(String alias, Operation operation, long bytes) {
+			// ignored
+		}
+		@Override
+		public void cached(String alias, boolean hit) {
+			// ignored
+		}
+	};
+
+	/**
+	 * An operation finished (successfully or not) after the given amount of nanoseconds
+	 */
+	public void timed(String alias, Operation operation, long nanos, boolean succeeded);
+
+	/**
+	 * The amount of bytes that were written by the operation
+	 */
+	public void written(String alias, Operation operation, long bytes);
+
+	/**
+	 * A lookup of a key or certificate was served from the cache (or not)
+	 */
+	public void cached(String alias, boolean hit);
+}
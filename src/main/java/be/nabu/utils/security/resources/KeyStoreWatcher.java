@@ -0,0 +1,161 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically checks whether the resources behind the loaded keystores of a manager were changed by someone else (another node, an operator...) and reloads them.
+ * A change is detected using the last modified time and size of the resource if it exposes them, otherwise the content is hashed.
+ * Reloaded keystores are swapped in without blocking readers, listeners are notified afterwards.
+ */
+public class KeyStoreWatcher implements Closeable {
+
+	public interface Listener {
+		public void reloaded(ManagedKeyStoreImpl keystore);
+	}
+
+	private KeyStoreManagerImpl manager;
+	private ScheduledExecutorService scheduler;
+	private boolean ownsScheduler;
+	private long interval;
+	private ScheduledFuture<?> future;
+	private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private AtomicLong checked = new AtomicLong(), reloaded = new AtomicLong(), failed = new AtomicLong();
+	private volatile Exception lastFailure;
+
+	public KeyStoreWatcher(KeyStoreManagerImpl manager, long interval, TimeUnit unit) {
+		this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "keystore-watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), manager, interval, unit);
+		this.ownsScheduler = true;
+	}
+
+	public KeyStoreWatcher(ScheduledExecutorService scheduler, KeyStoreManagerImpl manager, long interval, TimeUnit unit) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("The interval must be positive");
+		this.scheduler = scheduler;
+		this.manager = manager;
+		this.interval = unit.toNanos(interval);
+	}
+
+	/**
+	 * Starts checking in the background at the configured interval
+	 */
+	public synchronized void start() {
+		if (future == null) {
+			future = scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					check();
+				}
+			}, interval, interval, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+
+	/**
+	 * Checks all the loaded keystores once and returns the ones that were reloaded.
+	 * A keystore that fails to reload keeps its current state, the failure is available through getLastFailure().
+	 */
+	public List<ManagedKeyStoreImpl> check() {
+		List<ManagedKeyStoreImpl> reloaded = new ArrayList<ManagedKeyStoreImpl>();
+		// copy so a keystore that is loaded or deleted during the check does not interfere
+		for (ManagedKeyStoreImpl keystore : new ArrayList<ManagedKeyStoreImpl>(manager.getLoadedKeyStores())) {
+			checked.incrementAndGet();
+			try {
+				if (keystore.reload()) {
+					this.reloaded.incrementAndGet();
+					reloaded.add(keystore);
+					for (Listener listener : listeners) {
+						try {
+							listener.reloaded(keystore);
+						}
+						catch (RuntimeException e) {
+							lastFailure = e;
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				failed.incrementAndGet();
+				lastFailure = e;
+			}
+			catch (RuntimeException e) {
+				failed.incrementAndGet();
+				lastFailure = e;
+			}
+		}
+		return reloaded;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	@Override
+	public void close() throws IOException {
+		stop();
+		if (ownsScheduler)
+			scheduler.shutdown();
+	}
+
+	/**
+	 * The amount of times a keystore was checked for changes
+	 */
+	public long getChecked() {
+		return checked.get();
+	}
+
+	public long getReloaded() {
+		return reloaded.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+}
@@ -0,0 +1,88 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers events to the listeners in the same vm, for managers that share storage within one vm and for testing.
+ * Events are delivered in order on the executor.
+ */
+public class LoopbackEventBus implements KeyStoreEventBus {
+
+	private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private Executor executor;
+
+	public LoopbackEventBus() {
+		this(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "keystore-events");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+
+	/**
+	 * Delivering on the publishing thread (a direct executor) can deadlock two managers that publish to each other at the same time
+	 */
+	public LoopbackEventBus(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void publish(final KeyStoreEvent event) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Listener listener : listeners) {
+					try {
+						listener.handle(event);
+					}
+					catch (RuntimeException e) {
+						// one listener should not keep the event from the others
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public void subscribe(Listener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void unsubscribe(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Stops the executor if it was created by this bus
+	 */
+	public void shutdown() {
+		if (executor instanceof ExecutorService)
+			((ExecutorService) executor).shutdown();
+	}
+}
@@ -17,37 +17,140 @@
 
 package be.nabu.utils.security.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import javax.crypto.SecretKey;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
 
+import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.WritableResource;
-import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.io.api.ByteBuffer;
-import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.security.KeyStoreHandler;
 import be.nabu.utils.security.SSLContextType;
 import be.nabu.utils.security.SecurityUtils;
+import be.nabu.utils.security.StoreType;
 import be.nabu.utils.security.api.ManagedKeyStore;
 import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
 
 public class ManagedKeyStoreImpl implements ManagedKeyStore {
 	
-	private KeyStoreHandler handler;
+	/**
+	 * Volatile so a reload can swap in a new handler without blocking readers
+	 */
+	private volatile KeyStoreHandler handler;
 	private KeyStoreConfigurationHandler configurationHandler;
 	private KeyStoreConfiguration configuration;
 	private Resource resource;
 	private boolean saveOnChange = true;
+	private volatile Batch batch;
+	
+	/**
+	 * Held by the thread that owns the batch from begin until commit or rollback and by every modification.
+	 * Modifications from other threads wait for the batch to end, otherwise they would be silently rolled back or written as part of it.
+	 */
+	private ReentrantLock batchLock = new ReentrantLock();
+	
+	/**
+	 * Modifications are serialized by the batch lock, this lock only protects the key store itself: in place changes take the write lock,
+	 * reads that go to the key store take the read lock so they run in parallel. Reads served from the entry cache take no lock at all.
+	 * The key passwords are copied on write so they can be read without locking.
+	 */
+	private StampedLock lock = new StampedLock();
+	private WriteBehindFlusher flusher;
+	private volatile KeyStoreMetrics metrics = KeyStoreMetrics.NONE;
+	private volatile KeyStoreEventBus eventBus;
+	private String origin;
+	private volatile CertificateIndex index;
+	private volatile boolean indexedKeyManager;
+	private volatile IndexedKeyManager keyManager;
+	
+	/**
+	 * Incremented on every change to the keystore so derived state (like ssl contexts) can be rebuilt
+	 */
+	private AtomicLong generation = new AtomicLong();
+	private volatile Managers managers;
+	private Map<SSLContextType, CachedContext> contexts = new ConcurrentHashMap<SSLContextType, CachedContext>();
+	
+	/**
+	 * The version of the resource that the handler was last loaded from or saved to
+	 */
+	private volatile ResourceFingerprint fingerprint;
+	
+	/**
+	 * Counts the local modifications, the keystore has unsaved changes as long as the count differs from the one that was last written to the resource
+	 */
+	private AtomicLong modifications = new AtomicLong();
+	private volatile long savedModifications;
+	
+	/**
+	 * Set when a reload finds the resource changed by someone else while there are unsaved local changes
+	 */
+	private volatile boolean conflicted;
+	
+	private static class Managers {
+		private long generation;
+		private KeyManager [] keyManagers;
+		private TrustManager [] trustManagers;
+	}
+	
+	private static class CachedContext {
+		private long generation;
+		private SSLContext context;
+	}
+	
+	/**
+	 * Recovered keys and parsed certificates are cached as decrypting a key entry (especially for pkcs12 and jceks) is expensive.
+	 * Entries are only valid for the generation they were read in, so any change to the keystore invalidates them.
+	 */
+	private ConcurrentMap<String, CachedEntry> entries = new ConcurrentHashMap<String, CachedEntry>();
+	private volatile int maxCacheSize = 1024;
+	private volatile long cacheTimeToLive;
+	private AtomicLong cacheHits = new AtomicLong(), cacheMisses = new AtomicLong();
+	
+	private static class CachedEntry {
+		private long generation;
+		private long expires;
+		private Object value;
+	}
+	
+	/**
+	 * A set of modifications that is applied to the keystore as a whole
+	 */
+	public interface Mutation {
+		public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException;
+	}
+	
+	/**
+	 * The state of the keystore at the start of a batch, used to roll back
+	 */
+	private static class Batch {
+		private byte [] keystore;
+		private long modifications;
+		private Map<String, String> keyPasswords;
+		private boolean configurationChanged;
+	}
 	
 	public ManagedKeyStoreImpl(KeyStoreConfigurationHandler configurationHandler, Resource resource, KeyStoreConfiguration configuration, KeyStoreHandler handler) {
 		this.handler = handler;
@@ -57,54 +160,106 @@ public class ManagedKeyStoreImpl implements ManagedKeyStore {
 	}
 	
 	public void set(String alias, X509Certificate certificate) throws KeyStoreException, IOException {
-		handler.set(alias, certificate);
-		if (saveOnChange) {
-			// save the keystore
-			save();
+		batchLock.lock();
+		try {
+			long stamp = lock.writeLock();
+			try {
+				handler.set(alias, certificate);
+				modified();
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+			if (isSaveImmediately()) {
+				// save the keystore
+				persist();
+			}
+		}
+		finally {
+			batchLock.unlock();
 		}
 	}
 	
 	@Override
 	public void set(String alias, SecretKey secretKey, String password) throws KeyStoreException, IOException {
-		// add to keystore
-		handler.set(alias, secretKey, password);
-		// add password to configuration
-		configuration.getKeyPasswords().put(alias, password);
-		if (saveOnChange) {
-			// save the keystore
-			save();
-			// store the configuration
-			configurationHandler.save(configuration);
+		batchLock.lock();
+		try {
+			// add to keystore
+			long stamp = lock.writeLock();
+			try {
+				handler.set(alias, secretKey, password);
+				modified();
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+			// add password to configuration
+			setKeyPassword(alias, password);
+			configurationChanged();
+			if (isSaveImmediately()) {
+				// save the keystore
+				persist();
+				// store the configuration
+				persistConfiguration();
+			}
+		}
+		finally {
+			batchLock.unlock();
 		}
 	}
 
 	@Override
 	public void set(String alias, PrivateKey privateKey, X509Certificate [] chain, String password) throws KeyStoreException, IOException {
-		// add to keystore
-		handler.set(alias, privateKey, chain, password);
-		// add password to configuration
-		configuration.getKeyPasswords().put(alias, password);
-		if (saveOnChange) {
-			// save the keystore
-			save();
-			// store the configuration
-			configurationHandler.save(configuration);
+		batchLock.lock();
+		try {
+			// add to keystore
+			long stamp = lock.writeLock();
+			try {
+				handler.set(alias, privateKey, chain, password);
+				modified();
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+			// add password to configuration
+			setKeyPassword(alias, password);
+			configurationChanged();
+			if (isSaveImmediately()) {
+				// save the keystore
+				persist();
+				// store the configuration
+				persistConfiguration();
+			}
+		}
+		finally {
+			batchLock.unlock();
 		}
 	}
 	
 	@Override
 	public void rename(String oldAlias, String newAlias) throws KeyStoreException, IOException {
+		batchLock.lock();
 		try {
-			handler.rename(oldAlias, newAlias, configuration.getKeyPasswords().get(oldAlias));
-		}
-		catch (UnrecoverableKeyException e) {
-			throw new KeyStoreException(e);
+			long stamp = lock.writeLock();
+			try {
+				handler.rename(oldAlias, newAlias, configuration.getKeyPasswords().get(oldAlias));
+				modified();
+			}
+			catch (UnrecoverableKeyException e) {
+				throw new KeyStoreException(e);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+			if (isSaveImmediately()) {
+				persist();
+			}
 		}
-		catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
-		if (saveOnChange) {
-			save();
+		finally {
+			batchLock.unlock();
 		}
 	}
 	
@@ -120,48 +275,94 @@ public class ManagedKeyStoreImpl implements ManagedKeyStore {
 	
 	@Override
 	public void delete(String alias) throws KeyStoreException, IOException {
-		handler.delete(alias);
-		if (saveOnChange) {
-			save();
-		}
-		// check if there was a password for this alias, delete it if necessary
-		if (configuration.getKeyPasswords().containsKey(alias)) {
-			configuration.getKeyPasswords().remove(alias);
-			if (saveOnChange) {
-				configurationHandler.save(configuration);
+		batchLock.lock();
+		try {
+			long stamp = lock.writeLock();
+			try {
+				handler.delete(alias);
+				modified();
+			}
+			finally {
+				lock.unlockWrite(stamp);
 			}
+			if (isSaveImmediately()) {
+				persist();
+			}
+			// check if there was a password for this alias, delete it if necessary
+			if (configuration.getKeyPasswords().containsKey(alias)) {
+				removeKeyPassword(alias);
+				configurationChanged();
+				if (isSaveImmediately()) {
+					persistConfiguration();
+				}
+			}
+		}
+		finally {
+			batchLock.unlock();
 		}
 	}
 	
 	@Override
 	public PrivateKey getPrivateKey(String alias) throws KeyStoreException {
-		try {
-			return handler.getPrivateKey(alias, configuration.getKeyPasswords().get(alias));
-		}
-		catch (UnrecoverableKeyException e) {
-			throw new KeyStoreException(e);
-		}
-		catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+		long generation = this.generation.get();
+		PrivateKey privateKey = (PrivateKey) getCached("privateKey:" + alias, generation);
+		if (privateKey == null) {
+			long stamp = lock.readLock();
+			try {
+				privateKey = handler.getPrivateKey(alias, configuration.getKeyPasswords().get(alias));
+			}
+			catch (UnrecoverableKeyException e) {
+				throw new KeyStoreException(e);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			cache("privateKey:" + alias, generation, privateKey);
 		}
+		return privateKey;
 	}
 	
 	@Override
 	public X509Certificate getCertificate(String alias) throws KeyStoreException {
-		return handler.getCertificate(alias);
+		long generation = this.generation.get();
+		X509Certificate certificate = (X509Certificate) getCached("certificate:" + alias, generation);
+		if (certificate == null) {
+			long stamp = lock.readLock();
+			try {
+				certificate = handler.getCertificate(alias);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			cache("certificate:" + alias, generation, certificate);
+		}
+		return certificate;
 	}
 	
 	@Override
 	public SecretKey getSecretKey(String alias) throws KeyStoreException {
-		try {
-			return handler.getSecretKey(alias, configuration.getKeyPasswords().get(alias));
-		}
-		catch (UnrecoverableKeyException e) {
-			throw new KeyStoreException(e);
-		}
-		catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+		long generation = this.generation.get();
+		SecretKey secretKey = (SecretKey) getCached("secretKey:" + alias, generation);
+		if (secretKey == null) {
+			long stamp = lock.readLock();
+			try {
+				secretKey = handler.getSecretKey(alias, configuration.getKeyPasswords().get(alias));
+			}
+			catch (UnrecoverableKeyException e) {
+				throw new KeyStoreException(e);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			cache("secretKey:" + alias, generation, secretKey);
 		}
+		return secretKey;
 	}
 	
 	@Override
@@ -171,36 +372,110 @@ public class ManagedKeyStoreImpl implements ManagedKeyStore {
 	
 	public void save(Resource resource) throws IOException {
 		if (resource instanceof WritableResource) {
-			WritableContainer<ByteBuffer> output = ((WritableResource) resource).getWritable();
+			long started = System.nanoTime();
+			boolean succeeded = false;
 			try {
-				try {
-					handler.save(IOUtils.toOutputStream(output), configuration.getPassword());
-				}
-				finally {
-					output.close();
+				// read before serializing, a modification made while we write keeps the keystore dirty
+				long modifications = this.modifications.get();
+				// serialized once, the same bytes are used for the write and the fingerprint
+				byte [] content = serialize();
+				SafeResourceWriter.write((WritableResource) resource, content);
+				// our own writes should not be picked up as external changes
+				if (resource == this.resource) {
+					fingerprint = ResourceFingerprint.of(resource, content);
+					savedModifications = modifications;
+					conflicted = false;
 				}
+				metrics.written(configuration.getAlias(), KeyStoreMetrics.Operation.SAVE, content.length);
+				succeeded = true;
+				// only once it is written, otherwise the others would reload the old content
+				KeyStoreEventBus eventBus = this.eventBus;
+				if (eventBus != null && resource == this.resource)
+					eventBus.publish(new KeyStoreEvent(origin, configuration.getAlias(), KeyStoreEvent.Type.CHANGED));
 			}
-			catch (KeyStoreException e) {
-				throw new RuntimeException(e);
+			finally {
+				metrics.timed(configuration.getAlias(), KeyStoreMetrics.Operation.SAVE, System.nanoTime() - started, succeeded);
 			}
-			catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Reloads the keystore if its resource was changed by someone else, returns whether it was reloaded.
+	 * Modifications (and batches) are waited for, a dirty keystore (with changes that have not been written yet) is never reloaded.
+	 * If the resource was changed by someone else in the meantime the keystore is marked as conflicted, saving it overwrites those changes.
+	 */
+	public boolean reload() throws IOException {
+		if (!(resource instanceof ReadableResource))
+			return false;
+		batchLock.lock();
+		try {
+			if (isDirty()) {
+				ResourceFingerprint current = ResourceFingerprint.of(resource);
+				if (current == null)
+					current = ResourceFingerprint.of(SafeResourceWriter.read((ReadableResource) resource));
+				conflicted = !current.equals(fingerprint);
+				return false;
 			}
-			catch (CertificateException e) {
-				throw new RuntimeException(e);
+			SafeResourceWriter.recover(resource);
+			ResourceFingerprint current = ResourceFingerprint.of(resource);
+			if (current != null && current.equals(fingerprint))
+				return false;
+			long started = System.nanoTime();
+			// a write in progress is read from its complete copy
+			byte [] content = SafeResourceWriter.read((ReadableResource) resource);
+			if (current == null) {
+				current = ResourceFingerprint.of(content);
+				if (current.equals(fingerprint))
+					return false;
+			}
+			// only actual reloads are timed, not the checks that find nothing changed
+			boolean succeeded = false;
+			try {
+				// the new handler is fully loaded before it is swapped in, readers see either the old or the new one
+				handler = deserialize(content);
+				fingerprint = current;
+				changed();
+				succeeded = true;
+				return true;
+			}
+			finally {
+				metrics.timed(configuration.getAlias(), KeyStoreMetrics.Operation.RELOAD, System.nanoTime() - started, succeeded);
 			}
 		}
+		finally {
+			batchLock.unlock();
+		}
+	}
+	
+	void setFingerprint(ResourceFingerprint fingerprint) {
+		this.fingerprint = fingerprint;
 	}
 
 	@Override
 	public X509Certificate[] getChain(String alias) throws KeyStoreException {
-		Certificate [] chain = handler.getKeyStore().getCertificateChain(alias);
-		X509Certificate [] certificates = new X509Certificate[chain.length];
-		for (int i = 0; i < chain.length; i++)
-			certificates[i] = (X509Certificate) chain[i];
-		return certificates;
+		long generation = this.generation.get();
+		X509Certificate [] certificates = (X509Certificate []) getCached("chain:" + alias, generation);
+		if (certificates == null) {
+			Certificate [] chain;
+			long stamp = lock.readLock();
+			try {
+				chain = handler.getKeyStore().getCertificateChain(alias);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			certificates = new X509Certificate[chain.length];
+			for (int i = 0; i < chain.length; i++)
+				certificates[i] = (X509Certificate) chain[i];
+			cache("chain:" + alias, generation, certificates);
+		}
+		// the caller is free to modify the array it gets
+		return certificates.clone();
 	}
 
+	/**
+	 * Changes made directly on the returned key store bypass the locking and caching of this class
+	 */
 	@Override
 	public KeyStore getKeyStore() {
 		return handler.getKeyStore();
@@ -210,6 +485,274 @@ public class ManagedKeyStoreImpl implements ManagedKeyStore {
 		return configuration;
 	}
 
+	/**
+	 * Starts a batch: modifications are only applied in memory until the batch is committed.
+	 * The batch belongs to the calling thread, modifications (and batches) of other threads wait until it is committed or rolled back.
+	 */
+	public void begin() throws IOException {
+		batchLock.lock();
+		boolean started = false;
+		try {
+			if (batch != null)
+				throw new IllegalStateException("A batch is already in progress for keystore: " + configuration.getAlias());
+			Batch batch = new Batch();
+			batch.keystore = serialize();
+			batch.keyPasswords = new PasswordMap(configuration.getKeyPasswords());
+			batch.modifications = modifications.get();
+			this.batch = batch;
+			started = true;
+		}
+		finally {
+			// the lock is only kept if the batch actually started, whatever was thrown
+			if (!started)
+				batchLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes the keystore (and if necessary its configuration) once for all the modifications in the batch.
+	 * If the write fails, the state from before the batch is restored.
+	 */
+	public void commit() throws IOException {
+		Batch batch = endBatch();
+		// the batch lock is held while writing so no other modification can end up in (or be lost by) a restore
+		try {
+			if (saveOnChange) {
+				try {
+					save();
+					if (batch.configurationChanged)
+						configurationHandler.save(configuration);
+				}
+				catch (IOException e) {
+					restore(batch, e);
+					throw e;
+				}
+				catch (RuntimeException e) {
+					restore(batch, e);
+					throw e;
+				}
+			}
+		}
+		finally {
+			batchLock.unlock();
+		}
+	}
+	
+	/**
+	 * Discards all the modifications done since the start of the batch
+	 */
+	public void rollback() throws IOException {
+		Batch batch = endBatch();
+		try {
+			handler = deserialize(batch.keystore);
+			configuration.setKeyPasswords(batch.keyPasswords);
+			// back to the state (and with it the unsaved changes) from before the batch
+			modifications.set(batch.modifications);
+			changed();
+		}
+		finally {
+			batchLock.unlock();
+		}
+	}
+	
+	public boolean isInBatch() {
+		return batch != null;
+	}
+	
+	/**
+	 * Applies all the modifications in the mutation as a single batch, concurrent mutations are applied one after the other
+	 */
+	public void mutate(Mutation mutation) throws KeyStoreException, IOException {
+		begin();
+		boolean mutated = false;
+		try {
+			mutation.mutate(this);
+			mutated = true;
+		}
+		finally {
+			// rolled back on anything that was thrown (including errors) so the batch lock is never left held
+			if (!mutated)
+				rollback();
+		}
+		commit();
+	}
+	
+	/**
+	 * Ends the batch of the current thread, the batch lock is still held afterwards
+	 */
+	private Batch endBatch() {
+		if (batch == null || !batchLock.isHeldByCurrentThread())
+			throw new IllegalStateException("No batch in progress for keystore: " + configuration.getAlias());
+		Batch batch = this.batch;
+		this.batch = null;
+		return batch;
+	}
+	
+	private void restore(Batch batch, Exception cause) {
+		try {
+			handler = deserialize(batch.keystore);
+			configuration.setKeyPasswords(batch.keyPasswords);
+			changed();
+			// the keystore may already have been written, try to put the original back
+			save();
+			if (batch.configurationChanged)
+				configurationHandler.save(configuration);
+		}
+		catch (Exception e) {
+			cause.addSuppressed(e);
+		}
+	}
+	
+	private void persist() throws IOException {
+		if (flusher == null)
+			save();
+		else {
+			flusher.schedule(this, new WriteBehindFlusher.Write() {
+				@Override
+				public void write() throws IOException {
+					save();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * The configuration handler decides itself whether the write is deferred, the manager schedules it on the same flusher.
+	 * Scheduling it here as well would delay it twice and leave a pending write that can put the configuration back after the keystore is deleted.
+	 */
+	private void persistConfiguration() throws IOException {
+		configurationHandler.save(configuration);
+	}
+	
+	/**
+	 * The password map is replaced rather than modified so readers never see it halfway through a change
+	 */
+	private void setKeyPassword(String alias, String password) {
+		Map<String, String> keyPasswords = new PasswordMap(configuration.getKeyPasswords());
+		keyPasswords.put(alias, password);
+		configuration.setKeyPasswords(keyPasswords);
+	}
+	
+	private void removeKeyPassword(String alias) {
+		Map<String, String> keyPasswords = new PasswordMap(configuration.getKeyPasswords());
+		keyPasswords.remove(alias);
+		configuration.setKeyPasswords(keyPasswords);
+	}
+	
+	private void configurationChanged() {
+		if (batch != null)
+			batch.configurationChanged = true;
+	}
+	
+	private boolean isSaveImmediately() {
+		return saveOnChange && batch == null;
+	}
+	
+	private byte [] serialize() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// a background save runs outside of the batch lock
+		long stamp = lock.readLock();
+		try {
+			handler.save(output, configuration.getPassword());
+		}
+		catch (KeyStoreException e) {
+			throw new RuntimeException(e);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (CertificateException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+		return output.toByteArray();
+	}
+	
+	private KeyStoreHandler deserialize(byte [] content) throws IOException {
+		try {
+			return KeyStoreHandler.load(new ByteArrayInputStream(content), configuration.getPassword(), getStoreType());
+		}
+		catch (KeyStoreException e) {
+			throw new RuntimeException(e);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (CertificateException e) {
+			throw new RuntimeException(e);
+		}
+		catch (NoSuchProviderException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	StoreType getStoreType() {
+		if (configuration.getType() != null)
+			return configuration.getType();
+		String type = handler.getKeyStore().getType();
+		for (StoreType storeType : StoreType.values()) {
+			if (storeType.name().equalsIgnoreCase(type))
+				return storeType;
+		}
+		return StoreType.JKS;
+	}
+	
+	public WriteBehindFlusher getFlusher() {
+		return flusher;
+	}
+
+	/**
+	 * When set, changes are written in the background by the flusher instead of synchronously
+	 */
+	public void setFlusher(WriteBehindFlusher flusher) {
+		this.flusher = flusher;
+	}
+
+	public KeyStoreMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(KeyStoreMetrics metrics) {
+		this.metrics = metrics == null ? KeyStoreMetrics.NONE : metrics;
+	}
+
+	/**
+	 * The bus that other managers sharing the storage are notified on when this keystore is written, the origin identifies our manager
+	 */
+	void setEventBus(KeyStoreEventBus eventBus, String origin) {
+		this.origin = origin;
+		this.eventBus = eventBus;
+	}
+
+	public boolean isIndexedKeyManager() {
+		return indexedKeyManager;
+	}
+
+	/**
+	 * When enabled, the contexts built by newContext use an indexed key manager that picks the server key by the sni host name
+	 */
+	public void setIndexedKeyManager(boolean indexedKeyManager) {
+		this.indexedKeyManager = indexedKeyManager;
+		// the cached contexts were built with the other key manager
+		managers = null;
+		contexts.clear();
+	}
+	
+	/**
+	 * The indexed key manager for this keystore, it follows the changes to the keystore by itself
+	 */
+	public IndexedKeyManager getKeyManager() {
+		if (keyManager == null) {
+			synchronized(this) {
+				if (keyManager == null)
+					keyManager = new IndexedKeyManager(this);
+			}
+		}
+		return keyManager;
+	}
+
 	public boolean isSaveOnChange() {
 		return saveOnChange;
 	}
@@ -218,13 +761,213 @@ public class ManagedKeyStoreImpl implements ManagedKeyStore {
 		this.saveOnChange = saveOnChange;
 	}
 
+	/**
+	 * The ssl context is built once per type and reused until the keystore changes
+	 */
 	@Override
 	public SSLContext newContext(SSLContextType type) throws KeyStoreException {
+		// read the generation before building so a concurrent change always triggers a rebuild on the next call
+		long generation = this.generation.get();
+		CachedContext cached = contexts.get(type);
+		if (cached != null && cached.generation == generation)
+			return cached.context;
+		long started = System.nanoTime();
+		boolean succeeded = false;
 		try {
-			return SecurityUtils.createSSLContext(type, SecurityUtils.createKeyManagers(handler.getKeyStore(), configuration.getPassword()), SecurityUtils.createTrustManagers(handler.getKeyStore()));
+			Managers managers = getManagers(generation);
+			cached = new CachedContext();
+			cached.generation = generation;
+			cached.context = SecurityUtils.createSSLContext(type, managers.keyManagers, managers.trustManagers);
+			contexts.put(type, cached);
+			succeeded = true;
+			return cached.context;
 		}
 		catch (Exception e) {
 			throw new KeyStoreException("Failed to create new context", e);
-		} 
+		}
+		finally {
+			metrics.timed(configuration.getAlias(), KeyStoreMetrics.Operation.SSL_CONTEXT, System.nanoTime() - started, succeeded);
+		}
+	}
+	
+	/**
+	 * The key managers that newContext uses, shared with contexts that combine several keystores
+	 */
+	KeyManager [] getKeyManagers() throws Exception {
+		return getManagers(generation.get()).keyManagers;
+	}
+	
+	private Managers getManagers(long generation) throws Exception {
+		Managers managers = this.managers;
+		if (managers == null || managers.generation != generation) {
+			managers = new Managers();
+			managers.generation = generation;
+			// the managers copy what they need from the key store when they are created
+			long stamp = lock.readLock();
+			try {
+				managers.keyManagers = indexedKeyManager
+					? new KeyManager[] { getKeyManager() }
+					: SecurityUtils.createKeyManagers(handler.getKeyStore(), configuration.getPassword());
+				managers.trustManagers = SecurityUtils.createTrustManagers(handler.getKeyStore());
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+			this.managers = managers;
+		}
+		return managers;
+	}
+	
+	/**
+	 * The generation of the keystore, this changes every time the content of the keystore changes.
+	 * Callers that hold on to derived state (like connection pools built on a context) can compare it to know when to rebuild.
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Whether there are local changes that have not been written to the resource yet (for example with saveOnChange disabled or a pending write-behind)
+	 */
+	public boolean isDirty() {
+		return modifications.get() != savedModifications;
+	}
+	
+	/**
+	 * Whether the resource was changed by someone else while this keystore had unsaved changes, see reload()
+	 */
+	public boolean isConflicted() {
+		return conflicted;
+	}
+	
+	private void modified() {
+		modifications.incrementAndGet();
+		changed();
+	}
+	
+	private void changed() {
+		generation.incrementAndGet();
+		// the entries are no longer valid, no need to keep them around
+		entries.clear();
+		CertificateIndex index = this.index;
+		if (index != null)
+			index.invalidate(configuration.getAlias());
+	}
+	
+	/**
+	 * The certificate of every entry that has one by alias, as they are at this moment
+	 */
+	Map<String, X509Certificate> getCertificates() throws KeyStoreException {
+		return getCertificates(false);
+	}
+	
+	/**
+	 * Optionally limited to the private key entries, the certificate is then the first one of the chain
+	 */
+	Map<String, X509Certificate> getCertificates(boolean keyEntries) throws KeyStoreException {
+		Map<String, X509Certificate> certificates = new LinkedHashMap<String, X509Certificate>();
+		long stamp = lock.readLock();
+		try {
+			KeyStore keystore = handler.getKeyStore();
+			Enumeration<String> aliases = keystore.aliases();
+			while (aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				if (keyEntries && !keystore.isKeyEntry(alias))
+					continue;
+				Certificate certificate = keystore.getCertificate(alias);
+				if (certificate instanceof X509Certificate)
+					certificates.put(alias, (X509Certificate) certificate);
+			}
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+		return certificates;
+	}
+	
+	/**
+	 * The index is told whenever the content of this keystore changes, it indexes the keystore from memory on its next lookup
+	 */
+	void setCertificateIndex(CertificateIndex index) {
+		this.index = index;
+		if (index != null)
+			index.invalidate(configuration.getAlias());
+	}
+	
+	private Object getCached(String key, long generation) {
+		if (maxCacheSize <= 0)
+			return null;
+		CachedEntry entry = entries.get(key);
+		if (entry != null && entry.generation == generation && (entry.expires == 0 || entry.expires > System.currentTimeMillis())) {
+			cacheHits.incrementAndGet();
+			metrics.cached(configuration.getAlias(), true);
+			return entry.value;
+		}
+		cacheMisses.incrementAndGet();
+		metrics.cached(configuration.getAlias(), false);
+		return null;
+	}
+	
+	private void cache(String key, long generation, Object value) {
+		if (maxCacheSize <= 0 || value == null)
+			return;
+		if (entries.size() >= maxCacheSize)
+			evict();
+		CachedEntry entry = new CachedEntry();
+		entry.generation = generation;
+		entry.expires = cacheTimeToLive > 0 ? System.currentTimeMillis() + cacheTimeToLive : 0;
+		entry.value = value;
+		entries.put(key, entry);
+	}
+	
+	/**
+	 * Removes the stale and expired entries, if the cache is still full arbitrary entries are dropped to make room
+	 */
+	private void evict() {
+		long generation = this.generation.get();
+		long now = System.currentTimeMillis();
+		Iterator<CachedEntry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			CachedEntry entry = iterator.next();
+			if (entry.generation != generation || (entry.expires != 0 && entry.expires <= now))
+				iterator.remove();
+		}
+		iterator = entries.values().iterator();
+		while (entries.size() >= maxCacheSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+	
+	public int getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * The maximum amount of keys and certificates that are kept in memory, set to 0 to disable caching
+	 */
+	public void setMaxCacheSize(int maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+		if (maxCacheSize <= 0)
+			entries.clear();
+	}
+
+	public long getCacheTimeToLive() {
+		return cacheTimeToLive;
+	}
+
+	/**
+	 * How long (in milliseconds) a cached key or certificate is used before it is read from the keystore again, 0 means until the keystore changes
+	 */
+	public void setCacheTimeToLive(long cacheTimeToLive) {
+		this.cacheTimeToLive = cacheTimeToLive;
+	}
+	
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	public long getCacheMisses() {
+		return cacheMisses.get();
 	}
 }
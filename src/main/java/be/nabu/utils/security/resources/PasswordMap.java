@@ -0,0 +1,152 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The key passwords by alias, a password is only decrypted when it is actually requested.
+ * Copying the map copies the cached passwords as they are, without decrypting them.
+ */
+class PasswordMap extends AbstractMap<String, String> {
+
+	private final Map<String, CachedPassword> passwords = new HashMap<String, CachedPassword>();
+
+	public PasswordMap() {
+		// empty
+	}
+
+	public PasswordMap(Map<String, String> map) {
+		if (map instanceof PasswordMap)
+			passwords.putAll(((PasswordMap) map).passwords);
+		else if (map != null) {
+			for (Map.Entry<String, String> entry : map.entrySet())
+				put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * The cached password for the alias, other maps are wrapped so the password is encrypted at most once per call
+	 */
+	static CachedPassword getCached(Map<String, String> map, String alias) {
+		return map instanceof PasswordMap ? ((PasswordMap) map).passwords.get(alias) : CachedPassword.plain(map.get(alias));
+	}
+
+	void putCached(String alias, CachedPassword password) {
+		passwords.put(alias, password);
+	}
+
+	@Override
+	public String get(Object key) {
+		CachedPassword password = passwords.get(key);
+		return password == null ? null : password.getPlain();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return passwords.containsKey(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		return toPlain(passwords.put(key, CachedPassword.plain(value)));
+	}
+
+	@Override
+	public String remove(Object key) {
+		return toPlain(passwords.remove(key));
+	}
+
+	@Override
+	public void clear() {
+		passwords.clear();
+	}
+
+	@Override
+	public int size() {
+		return passwords.size();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return passwords.keySet();
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				final Iterator<Map.Entry<String, CachedPassword>> iterator = passwords.entrySet().iterator();
+				return new Iterator<Map.Entry<String, String>>() {
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+					@Override
+					public Map.Entry<String, String> next() {
+						final Map.Entry<String, CachedPassword> entry = iterator.next();
+						return new Map.Entry<String, String>() {
+							@Override
+							public String getKey() {
+								return entry.getKey();
+							}
+							@Override
+							public String getValue() {
+								return toPlain(entry.getValue());
+							}
+							@Override
+							public String setValue(String value) {
+								return toPlain(entry.setValue(CachedPassword.plain(value)));
+							}
+							@Override
+							public boolean equals(Object object) {
+								if (!(object instanceof Map.Entry))
+									return false;
+								Map.Entry<?, ?> other = (Map.Entry<?, ?>) object;
+								return Objects.equals(getKey(), other.getKey()) && Objects.equals(getValue(), other.getValue());
+							}
+							@Override
+							public int hashCode() {
+								return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+							}
+						};
+					}
+					@Override
+					public void remove() {
+						iterator.remove();
+					}
+				};
+			}
+			@Override
+			public int size() {
+				return passwords.size();
+			}
+		};
+	}
+
+	private static String toPlain(CachedPassword password) {
+		return password == null ? null : password.getPlain();
+	}
+}
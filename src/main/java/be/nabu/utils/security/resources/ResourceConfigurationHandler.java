@@ -17,26 +17,29 @@
 
 package be.nabu.utils.security.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
 
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.WritableResource;
-import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.io.api.ByteBuffer;
-import be.nabu.utils.io.api.ReadableContainer;
-import be.nabu.utils.io.api.WritableContainer;
 import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
 
 public class ResourceConfigurationHandler implements KeyStoreConfigurationHandler {
 
+	private static final QName ROOT = new QName("keystore");
+	
 	private Resource resource;
 	private Class<? extends KeyStoreConfiguration> configurationClass;
 
@@ -59,20 +62,20 @@ public class ResourceConfigurationHandler implements KeyStoreConfigurationHandle
 		}
 	}
 	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public void marshal(KeyStoreConfiguration configuration, OutputStream container) throws JAXBException {
-		JAXBContext context = JAXBContext.newInstance(configurationClass);
-		Marshaller marshaller = context.createMarshaller();
-		marshaller.marshal(configuration, container);
+		Marshaller marshaller = JAXBContextCache.getMarshaller(configurationClass);
+		// the base configuration has no root element (see there), it is written as a keystore element
+		if (!configurationClass.isAnnotationPresent(XmlRootElement.class))
+			marshaller.marshal(new JAXBElement(ROOT, configurationClass, configuration), container);
+		else
+			marshaller.marshal(configuration, container);
 	}
 	
 	public void marshal(KeyStoreConfiguration configuration, WritableResource resource) throws IOException, JAXBException {
-		WritableContainer<ByteBuffer> output = resource.getWritable();
-		try {
-			marshal(configuration, IOUtils.toOutputStream(output));
-		}
-		finally {
-			output.close();
-		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshal(configuration, output);
+		SafeResourceWriter.write(resource, output.toByteArray());
 	}
 	
 	// currently unused, if we delete the deprecated, we can rename these before using them
@@ -81,18 +84,13 @@ public class ResourceConfigurationHandler implements KeyStoreConfigurationHandle
 		return unmarshal(input, configurationClass);
 	}
 	KeyStoreConfiguration unmarshalLocal(ReadableResource resource) throws IOException, JAXBException {
-		ReadableContainer<ByteBuffer> data = resource.getReadable();
-		try {
-			return unmarshal(IOUtils.toInputStream(data), configurationClass);
-		}
-		finally {
-			data.close();
-		}
+		return unmarshal(new ByteArrayInputStream(SafeResourceWriter.read(resource)), configurationClass);
 	}
 	
 	public static KeyStoreConfiguration unmarshal(InputStream input, Class<?> configurationClass) throws JAXBException {
-		JAXBContext context = JAXBContext.newInstance(configurationClass);
-		Unmarshaller unmarshaller = context.createUnmarshaller();
+		Unmarshaller unmarshaller = JAXBContextCache.getUnmarshaller(configurationClass);
+		if (!configurationClass.isAnnotationPresent(XmlRootElement.class))
+			return (KeyStoreConfiguration) unmarshaller.unmarshal(new StreamSource(input), configurationClass).getValue();
 		return (KeyStoreConfiguration) unmarshaller.unmarshal(input);
 	}
 
@@ -103,12 +101,6 @@ public class ResourceConfigurationHandler implements KeyStoreConfigurationHandle
 	}
 	@Deprecated
 	public static KeyStoreConfiguration unmarshal(ReadableResource resource) throws IOException, JAXBException {
-		ReadableContainer<ByteBuffer> data = resource.getReadable();
-		try {
-			return unmarshal(IOUtils.toInputStream(data));
-		}
-		finally {
-			data.close();
-		}
+		return unmarshal(new ByteArrayInputStream(SafeResourceWriter.read(resource)));
 	}
 }
@@ -0,0 +1,113 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.TimestampedResource;
+
+/**
+ * Identifies a version of the content of a resource.
+ * The last modified time and size are used if the resource exposes them, otherwise a hash of the content.
+ */
+class ResourceFingerprint {
+
+	private long lastModified = -1, size = -1;
+	private byte [] hash;
+
+	private ResourceFingerprint() {
+		// use the factory methods
+	}
+
+	/**
+	 * The fingerprint based on the metadata of the resource, or null if it has none and the content has to be hashed
+	 */
+	public static ResourceFingerprint of(Resource resource) {
+		if (!(resource instanceof TimestampedResource) && !(resource instanceof FiniteResource))
+			return null;
+		ResourceFingerprint fingerprint = new ResourceFingerprint();
+		if (resource instanceof TimestampedResource) {
+			Date lastModified = ((TimestampedResource) resource).getLastModified();
+			if (lastModified != null)
+				fingerprint.lastModified = lastModified.getTime();
+		}
+		if (resource instanceof FiniteResource)
+			fingerprint.size = ((FiniteResource) resource).getSize();
+		return fingerprint;
+	}
+
+	/**
+	 * The fingerprint based on the metadata of the resource if it has any, otherwise on the given content
+	 */
+	public static ResourceFingerprint of(Resource resource, byte [] content) {
+		ResourceFingerprint fingerprint = of(resource);
+		return fingerprint == null ? of(content) : fingerprint;
+	}
+
+	public static ResourceFingerprint of(byte [] content) {
+		ResourceFingerprint fingerprint = new ResourceFingerprint();
+		try {
+			fingerprint.hash = MessageDigest.getInstance("SHA-256").digest(content);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		return fingerprint;
+	}
+
+	public void write(DataOutput output) throws IOException {
+		output.writeLong(lastModified);
+		output.writeLong(size);
+		output.writeInt(hash == null ? -1 : hash.length);
+		if (hash != null)
+			output.write(hash);
+	}
+	
+	public static ResourceFingerprint read(DataInput input) throws IOException {
+		ResourceFingerprint fingerprint = new ResourceFingerprint();
+		fingerprint.lastModified = input.readLong();
+		fingerprint.size = input.readLong();
+		int length = input.readInt();
+		if (length >= 0) {
+			fingerprint.hash = new byte[length];
+			input.readFully(fingerprint.hash);
+		}
+		return fingerprint;
+	}
+	
+	@Override
+	public boolean equals(Object object) {
+		if (!(object instanceof ResourceFingerprint))
+			return false;
+		ResourceFingerprint other = (ResourceFingerprint) object;
+		return lastModified == other.lastModified && size == other.size && Arrays.equals(hash, other.hash);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * Long.hashCode(lastModified) + Long.hashCode(size)) + Arrays.hashCode(hash);
+	}
+}
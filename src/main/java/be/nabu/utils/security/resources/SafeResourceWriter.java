@@ -0,0 +1,266 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.resources.ResourceUtils;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+import be.nabu.utils.io.api.WritableContainer;
+
+/**
+ * Writes resources in a way that survives a crash halfway through and that readers never see halfway through.
+ * The resources api has no rename we can rely on, so the content is first written in full to a temporary sibling, which is then marked complete by creating a marker.
+ * Only then is the target overwritten, after which the marker and the temporary copy are removed (in that order).
+ * Readers go through read(): while the marker exists they are served the complete temporary copy, otherwise the target, which is read again if it changed while it was read.
+ * The target is overwritten in place rather than deleted and created again, the managers hold on to the resource instances and those may not survive a delete (e.g. memory resources).
+ * The marker holds the writer, the time it started and a sequence number, if a write is interrupted the next read restores the target from the temporary copy.
+ * As the storage may be shared by multiple nodes, the marker of another writer is only considered abandoned once it is older than the lease.
+ * If the target has no manageable parent, it is written directly.
+ */
+class SafeResourceWriter {
+
+	private static final String TEMPORARY = ".tmp", COMPLETE = ".complete";
+	
+	/**
+	 * Identifies the writes of this vm in the markers
+	 */
+	private static final String OWNER = UUID.randomUUID().toString();
+	
+	/**
+	 * Numbers the writes of this vm so each marker is unique, a reader can tell whether the temporary copy was replaced while it was reading it
+	 */
+	private static final AtomicLong writes = new AtomicLong();
+	
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	/**
+	 * How many times a target that keeps changing is read again before giving up
+	 */
+	private static final int MAX_READS = 10;
+	
+	/**
+	 * How long (in ms) the marker of another writer is assumed to belong to a write that is still in progress, this should comfortably exceed the time a write takes
+	 */
+	private static volatile long lease = Long.getLong("be.nabu.utils.security.resources.writeLease", TimeUnit.MINUTES.toMillis(1));
+	
+	/**
+	 * One lock per target uri, different resource instances (for example from different managers) can point to the same target.
+	 * The amount of targets is small (a configuration and its keystores) so the locks are kept.
+	 */
+	private static final ConcurrentMap<URI, Object> locks = new ConcurrentHashMap<URI, Object>();
+
+	private SafeResourceWriter() {
+		// static access only
+	}
+
+	public static void write(WritableResource target, byte [] content) throws IOException {
+		if (!(target.getParent() instanceof ManageableContainer)) {
+			write(target, content, false);
+			return;
+		}
+		ManageableContainer<?> container = (ManageableContainer<?>) target.getParent();
+		// writes to the same resource are serialized, otherwise one could remove the temporary copy of the other
+		synchronized(getLock(target)) {
+			// readers trust the temporary copy while there is a marker, an interrupted write is finished before the copy is overwritten
+			recover(target);
+			write(getOrCreate(container, target.getName() + TEMPORARY, target.getContentType()), content, true);
+			write(getOrCreate(container, target.getName() + COMPLETE, "text/plain"), (OWNER + "\n" + System.currentTimeMillis() + "\n" + writes.incrementAndGet()).getBytes(CHARSET), true);
+			write(target, content, false);
+			// another node may have taken over an expired marker in the meantime and removed them already
+			delete(container, target.getName() + COMPLETE);
+			delete(container, target.getName() + TEMPORARY);
+		}
+	}
+
+	/**
+	 * Reads the complete content of the target, a write that is in progress (in this vm or elsewhere) is never seen halfway through.
+	 * An abandoned write is recovered first.
+	 */
+	public static byte [] read(ReadableResource target) throws IOException {
+		if (!(target.getParent() instanceof ManageableContainer))
+			return toBytes(target);
+		ManageableContainer<?> container = (ManageableContainer<?>) target.getParent();
+		// the writers in this vm are excluded by the lock, the others by the marker
+		synchronized(getLock(target)) {
+			recover(target);
+			for (int i = 0; i < MAX_READS; i++) {
+				byte [] marker = getMarker(container, target);
+				if (marker != null) {
+					Resource temporary = container.getChild(target.getName() + TEMPORARY);
+					if (temporary instanceof ReadableResource) {
+						try {
+							byte [] content = toBytes((ReadableResource) temporary);
+							// the copy can only be rewritten by a next write, which has a marker of its own
+							if (Arrays.equals(marker, getMarker(container, target)))
+								return content;
+						}
+						// the writer finished and removed it while we were reading
+						catch (IOException e) {
+							// try again
+						}
+						continue;
+					}
+				}
+				ResourceFingerprint before = ResourceFingerprint.of(target);
+				byte [] content = toBytes(target);
+				// a write that started (or even finished) while we were reading leaves either a marker or a different fingerprint
+				if (getMarker(container, target) == null && (before == null || before.equals(ResourceFingerprint.of(target))))
+					return content;
+			}
+		}
+		throw new IOException("The resource " + target.getName() + " kept changing while it was being read");
+	}
+
+	/**
+	 * The content of the marker of the target, null if there is none
+	 */
+	private static byte [] getMarker(ManageableContainer<?> container, Resource target) throws IOException {
+		Resource marker = container.getChild(target.getName() + COMPLETE);
+		if (marker == null)
+			return null;
+		return marker instanceof ReadableResource ? toBytes((ReadableResource) marker) : new byte[0];
+	}
+
+	/**
+	 * Whether there is a complete copy of the target waiting to be written to it, the target itself may be incomplete
+	 */
+	public static boolean isPending(Resource target) {
+		if (!(target.getParent() instanceof ManageableContainer))
+			return false;
+		ManageableContainer<?> container = (ManageableContainer<?>) target.getParent();
+		return container.getChild(target.getName() + COMPLETE) != null && container.getChild(target.getName() + TEMPORARY) instanceof ReadableResource;
+	}
+
+	/**
+	 * Restores the target from the temporary copy if a previous write was interrupted, returns whether it did.
+	 * A write by another vm that is younger than the lease is assumed to still be running and is left alone.
+	 */
+	public static boolean recover(Resource target) throws IOException {
+		if (!(target instanceof WritableResource) || !(target.getParent() instanceof ManageableContainer))
+			return false;
+		ManageableContainer<?> container = (ManageableContainer<?>) target.getParent();
+		synchronized(getLock(target)) {
+			Resource marker = container.getChild(target.getName() + COMPLETE);
+			if (marker == null || !isAbandoned(marker))
+				return false;
+			Resource temporary = container.getChild(target.getName() + TEMPORARY);
+			if (temporary instanceof ReadableResource)
+				write((WritableResource) target, toBytes((ReadableResource) temporary), false);
+			delete(container, target.getName() + COMPLETE);
+			delete(container, target.getName() + TEMPORARY);
+			return temporary instanceof ReadableResource;
+		}
+	}
+
+	/**
+	 * Our own markers are always abandoned as our writes hold the lock, the markers of others once they are older than the lease.
+	 * A marker without a readable owner (a crash right after it was created or an older version) is judged by its timestamp if it has one.
+	 */
+	private static boolean isAbandoned(Resource marker) throws IOException {
+		long started = -1;
+		if (marker instanceof ReadableResource) {
+			String [] parts = new String(toBytes((ReadableResource) marker), CHARSET).trim().split("\n");
+			if (parts.length >= 2) {
+				if (OWNER.equals(parts[0]))
+					return true;
+				try {
+					started = Long.parseLong(parts[1].trim());
+				}
+				catch (NumberFormatException e) {
+					// judged by its timestamp
+				}
+			}
+		}
+		if (started < 0 && marker instanceof TimestampedResource) {
+			Date lastModified = ((TimestampedResource) marker).getLastModified();
+			if (lastModified != null)
+				started = lastModified.getTime();
+		}
+		return started < 0 || System.currentTimeMillis() - started > lease;
+	}
+
+	public static long getLease() {
+		return lease;
+	}
+
+	/**
+	 * How long (in ms) a write by another node is assumed to be in progress before it can be recovered
+	 */
+	public static void setLease(long lease) {
+		SafeResourceWriter.lease = lease;
+	}
+
+	private static Object getLock(Resource target) {
+		URI uri = ResourceUtils.getURI(target);
+		Object lock = locks.get(uri);
+		if (lock == null) {
+			locks.putIfAbsent(uri, new Object());
+			lock = locks.get(uri);
+		}
+		return lock;
+	}
+
+	private static Resource getOrCreate(ManageableContainer<?> container, String name, String contentType) throws IOException {
+		Resource resource = container.getChild(name);
+		return resource == null ? container.create(name, contentType) : resource;
+	}
+
+	private static void delete(ManageableContainer<?> container, String name) throws IOException {
+		if (container.getChild(name) != null)
+			container.delete(name);
+	}
+
+	private static byte [] toBytes(ReadableResource resource) throws IOException {
+		ReadableContainer<ByteBuffer> input = resource.getReadable();
+		try {
+			return IOUtils.toBytes(input);
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	private static void write(Resource resource, byte [] content, boolean temporary) throws IOException {
+		if (!(resource instanceof WritableResource))
+			throw new IOException("The " + (temporary ? "temporary " : "") + "resource " + resource.getName() + " is not writable");
+		WritableContainer<ByteBuffer> output = ((WritableResource) resource).getWritable();
+		try {
+			IOUtils.toOutputStream(output).write(content);
+		}
+		finally {
+			output.close();
+		}
+	}
+}
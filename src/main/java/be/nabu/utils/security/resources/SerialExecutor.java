@@ -0,0 +1,128 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the tasks one after the other in the order they were submitted, on the threads of the given executor.
+ * No thread is blocked waiting for its turn, the next task is only handed to the executor once the previous one finished.
+ * Once the queue drains the instance is retired and no longer accepts tasks, a new one should be created for the next batch.
+ */
+class SerialExecutor implements Executor {
+
+	/**
+	 * A task that is told when it is dropped because the underlying executor no longer accepts tasks
+	 */
+	interface Rejectable extends Runnable {
+		public void rejected(RejectedExecutionException e);
+	}
+
+	private Queue<Task> tasks = new ArrayDeque<Task>();
+	private Executor executor;
+	private Task active;
+	private boolean retired;
+
+	SerialExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (!offer(task))
+			throw new RejectedExecutionException("The serial executor is retired");
+	}
+
+	/**
+	 * Queues the task unless this instance is retired, a rejection by the underlying executor is thrown
+	 */
+	synchronized boolean offer(Runnable task) {
+		if (retired)
+			return false;
+		tasks.add(new Task(task));
+		if (active == null)
+			next();
+		return true;
+	}
+
+	/**
+	 * Called (while holding the lock of this instance) when it is retired
+	 */
+	protected void drained() {
+		// do nothing
+	}
+
+	private synchronized void next() {
+		active = tasks.poll();
+		if (active == null)
+			retire();
+		else {
+			try {
+				executor.execute(active);
+			}
+			// the executor no longer accepts tasks, nothing that is queued can run
+			catch (RejectedExecutionException e) {
+				Task dropped = active;
+				active = null;
+				while (dropped != null) {
+					dropped.rejected(e);
+					dropped = tasks.poll();
+				}
+				retire();
+				throw e;
+			}
+		}
+	}
+
+	private void retire() {
+		retired = true;
+		drained();
+	}
+
+	private class Task implements Runnable {
+		private Runnable task;
+
+		private Task(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			}
+			finally {
+				try {
+					next();
+				}
+				// the dropped tasks were told about it, there is no one else to report it to
+				catch (RejectedExecutionException e) {
+					// ignore
+				}
+			}
+		}
+
+		private void rejected(RejectedExecutionException e) {
+			if (task instanceof Rejectable)
+				((Rejectable) task).rejected(e);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreReference;
+
+/**
+ * Reads and writes the manager configuration one keystore at a time, in the same format as KeyStoreManagerConfiguration.
+ * Only a single keystore configuration is kept in memory, so this can be used for managers that are too large to unmarshal as a whole.
+ */
+public class StreamingConfiguration {
+
+	private static final String ROOT = "keystoreManager", KEYSTORES = "keyStores", REFERENCES = "keyStoreConfigurations", SPLIT = "split", CONTAINER = "newKeystoreContainer", ALIAS = "alias";
+
+	private static XMLInputFactory inputFactory = newInputFactory();
+	private static XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+	/**
+	 * Receives the keystores in the order they appear in the configuration
+	 */
+	public interface Visitor {
+		/**
+		 * Return false to stop reading
+		 */
+		public boolean visit(KeyStoreConfiguration keystore);
+	}
+
+	private StreamingConfiguration() {
+		// static access only
+	}
+
+	private static XMLInputFactory newInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// as with jaxb, no external entities
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	/**
+	 * Lists the aliases of the keystores (or of the referenced keystores in a split configuration) without binding anything
+	 */
+	public static List<String> listAliases(InputStream input) throws JAXBException {
+		List<String> aliases = new ArrayList<String>();
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+			try {
+				int depth = 0;
+				String parent = null;
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						depth++;
+						if (depth == 2)
+							parent = reader.getLocalName();
+						else if (depth == 3 && ALIAS.equals(reader.getLocalName()) && (KEYSTORES.equals(parent) || REFERENCES.equals(parent))) {
+							aliases.add(reader.getElementText());
+							// getElementText consumes the end element
+							depth--;
+						}
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT)
+						depth--;
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new JAXBException(e);
+		}
+		return aliases;
+	}
+
+	/**
+	 * Returns the configuration of the keystore with the given alias, the others are read but not kept
+	 */
+	public static KeyStoreConfiguration getKeyStore(InputStream input, final String alias) throws JAXBException {
+		final List<KeyStoreConfiguration> found = new ArrayList<KeyStoreConfiguration>();
+		read(input, new Visitor() {
+			@Override
+			public boolean visit(KeyStoreConfiguration keystore) {
+				if (alias.equals(keystore.getAlias())) {
+					found.add(keystore);
+					return false;
+				}
+				return true;
+			}
+		});
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	/**
+	 * Binds each keystore configuration on its own and hands it to the visitor
+	 */
+	public static void read(InputStream input, Visitor visitor) throws JAXBException {
+		Unmarshaller unmarshaller = JAXBContextCache.getUnmarshaller(KeyStoreManagerConfiguration.class);
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+			try {
+				int depth = 0;
+				while (reader.hasNext()) {
+					int event = reader.getEventType();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						if (depth == 1 && KEYSTORES.equals(reader.getLocalName())) {
+							KeyStoreConfiguration keystore = unmarshaller.unmarshal(reader, KeyStoreConfiguration.class).getValue();
+							if (!visitor.visit(keystore))
+								return;
+							// jaxb leaves the reader on the event after the element, which may be the start of the next keystore
+							continue;
+						}
+						depth++;
+					}
+					else if (event == XMLStreamConstants.END_ELEMENT)
+						depth--;
+					reader.next();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new JAXBException(e);
+		}
+	}
+
+	/**
+	 * Writes a configuration with the given keystores, they can be produced while writing (e.g. from another stream) so only one is in memory at a time
+	 */
+	public static void write(OutputStream output, URI newKeystoreContainer, Iterable<? extends KeyStoreConfiguration> keystores) throws JAXBException {
+		write(output, newKeystoreContainer, keystores, null);
+	}
+
+	/**
+	 * Writes the configuration in the same layout as the manager does: once split, only the references are written as the keystores are stored in resources of their own
+	 */
+	public static void write(OutputStream output, KeyStoreManagerConfiguration configuration) throws JAXBException {
+		List<KeyStoreReference> references = configuration.getKeyStoreConfigurations();
+		write(output, configuration.getNewKeystoreContainer(), references == null ? configuration.getKeyStores() : Collections.<KeyStoreConfiguration>emptyList(), references);
+	}
+
+	private static void write(OutputStream output, URI newKeystoreContainer, Iterable<? extends KeyStoreConfiguration> keystores, List<KeyStoreReference> references) throws JAXBException {
+		Marshaller marshaller = JAXBContextCache.getMarshaller(KeyStoreManagerConfiguration.class);
+		marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+		try {
+			XMLStreamWriter writer = outputFactory.createXMLStreamWriter(output, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement(ROOT);
+			if (references != null) {
+				for (KeyStoreReference reference : references)
+					marshaller.marshal(new JAXBElement<KeyStoreReference>(new QName(REFERENCES), KeyStoreReference.class, reference), writer);
+			}
+			for (KeyStoreConfiguration keystore : keystores)
+				marshaller.marshal(new JAXBElement<KeyStoreConfiguration>(new QName(KEYSTORES), KeyStoreConfiguration.class, keystore), writer);
+			if (newKeystoreContainer != null) {
+				writer.writeStartElement(CONTAINER);
+				writer.writeCharacters(newKeystoreContainer.toString());
+				writer.writeEndElement();
+			}
+			// see KeyStoreManagerConfiguration.getSplit()
+			if (references != null) {
+				writer.writeStartElement(SPLIT);
+				writer.writeCharacters("true");
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+			writer.close();
+		}
+		catch (XMLStreamException e) {
+			throw new JAXBException(e);
+		}
+		finally {
+			// the marshaller is reused by the next marshal on this thread
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, false);
+		}
+	}
+}
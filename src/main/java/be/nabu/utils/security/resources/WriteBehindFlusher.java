@@ -0,0 +1,294 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delays writes until nothing has changed for the quiet period (or the maximum delay has passed since the first change).
+ * Multiple writes for the same key that arrive in that window are coalesced into a single write of the latest state.
+ * Writes are executed one at a time, either by the scheduler or by an explicit flush.
+ */
+public class WriteBehindFlusher implements Flushable, Closeable {
+
+	public interface Write {
+		public void write() throws IOException;
+	}
+	
+	private static class Pending {
+		private Write write;
+		private long firstRequested;
+		private ScheduledFuture<?> future;
+		private int attempts;
+	}
+	
+	private ScheduledExecutorService scheduler;
+	private boolean ownsScheduler;
+	private long quietPeriod, maxDelay;
+	private volatile int maxRetries = 3;
+	private Map<Object, Pending> pending = new HashMap<Object, Pending>();
+	private ReentrantLock writeLock = new ReentrantLock();
+	private volatile boolean closed;
+	private AtomicLong requested = new AtomicLong(), written = new AtomicLong(), coalesced = new AtomicLong(), failed = new AtomicLong(), dropped = new AtomicLong();
+	private volatile Exception lastFailure;
+	
+	public WriteBehindFlusher(long quietPeriod, long maxDelay, TimeUnit unit) {
+		this(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "keystore-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), quietPeriod, maxDelay, unit);
+		this.ownsScheduler = true;
+	}
+	
+	public WriteBehindFlusher(ScheduledExecutorService scheduler, long quietPeriod, long maxDelay, TimeUnit unit) {
+		if (maxDelay < quietPeriod)
+			throw new IllegalArgumentException("The maximum delay can not be smaller than the quiet period");
+		this.scheduler = scheduler;
+		this.quietPeriod = unit.toNanos(quietPeriod);
+		this.maxDelay = unit.toNanos(maxDelay);
+	}
+	
+	/**
+	 * Schedules the write for the given key, replacing any write for that key that is still pending
+	 * Once closed (or if the scheduler no longer accepts tasks), writes are performed immediately
+	 */
+	public void schedule(Object key, Write write) throws IOException {
+		requested.incrementAndGet();
+		// checked and scheduled under the same lock as close() marks us closed, so nothing is submitted to a scheduler that is shut down
+		synchronized(pending) {
+			if (!closed) {
+				long now = System.nanoTime();
+				Pending current = pending.get(key);
+				if (current == null) {
+					current = new Pending();
+					current.firstRequested = now;
+					pending.put(key, current);
+				}
+				else {
+					coalesced.incrementAndGet();
+					current.future.cancel(false);
+				}
+				current.write = write;
+				long delay = Math.max(0, Math.min(quietPeriod, maxDelay - (now - current.firstRequested)));
+				try {
+					current.future = scheduler.schedule(newTask(key, current), delay, TimeUnit.NANOSECONDS);
+					return;
+				}
+				// a scheduler we don't own may have been shut down, the latest write is performed below
+				catch (RejectedExecutionException e) {
+					pending.remove(key);
+				}
+			}
+		}
+		execute(write);
+	}
+	
+	/**
+	 * Drops the pending write for the key (if any), for example because the target was deleted
+	 */
+	public void cancel(Object key) {
+		synchronized(pending) {
+			Pending current = pending.remove(key);
+			if (current != null)
+				current.future.cancel(false);
+		}
+	}
+	
+	public boolean isPending(Object key) {
+		synchronized(pending) {
+			return pending.containsKey(key);
+		}
+	}
+	
+	/**
+	 * Performs all the pending writes now, the first exception (if any) is thrown after all writes were attempted
+	 */
+	@Override
+	public void flush() throws IOException {
+		List<Pending> writes;
+		synchronized(pending) {
+			writes = new ArrayList<Pending>(pending.values());
+			for (Pending current : writes)
+				current.future.cancel(false);
+			pending.clear();
+		}
+		IOException exception = null;
+		for (Pending current : writes) {
+			try {
+				execute(current.write);
+			}
+			catch (IOException e) {
+				if (exception == null)
+					exception = e;
+				else
+					exception.addSuppressed(e);
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+	
+	/**
+	 * Flushes all pending writes, any writes scheduled afterwards are performed immediately
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized(pending) {
+			closed = true;
+		}
+		try {
+			flush();
+		}
+		finally {
+			if (ownsScheduler)
+				scheduler.shutdown();
+		}
+	}
+	
+	private Runnable newTask(final Object key, final Pending expected) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				synchronized(pending) {
+					// it was rescheduled, flushed or cancelled in the meantime
+					if (pending.get(key) != expected)
+						return;
+					pending.remove(key);
+				}
+				try {
+					execute(expected.write);
+				}
+				catch (IOException e) {
+					retry(key, expected);
+				}
+				catch (RuntimeException e) {
+					retry(key, expected);
+				}
+			}
+		};
+	}
+	
+	private void retry(Object key, Pending previous) {
+		synchronized(pending) {
+			// only retry if no newer write has been scheduled
+			if (!closed && !pending.containsKey(key)) {
+				// a write that keeps failing is given up on, the failure is available through getLastFailure()
+				if (previous.attempts++ >= maxRetries) {
+					dropped.incrementAndGet();
+					return;
+				}
+				previous.firstRequested = System.nanoTime();
+				try {
+					previous.future = scheduler.schedule(newTask(key, previous), maxDelay, TimeUnit.NANOSECONDS);
+				}
+				// nothing left to retry it on
+				catch (RejectedExecutionException e) {
+					dropped.incrementAndGet();
+					return;
+				}
+				pending.put(key, previous);
+			}
+		}
+	}
+	
+	private void execute(Write write) throws IOException {
+		writeLock.lock();
+		try {
+			write.write();
+			written.incrementAndGet();
+		}
+		catch (IOException e) {
+			failed.incrementAndGet();
+			lastFailure = e;
+			throw e;
+		}
+		catch (RuntimeException e) {
+			failed.incrementAndGet();
+			lastFailure = e;
+			throw e;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * The amount of writes that were requested
+	 */
+	public long getRequested() {
+		return requested.get();
+	}
+	
+	/**
+	 * The amount of writes that were actually performed
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+	
+	/**
+	 * The amount of requested writes that were absorbed by a later write for the same target
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+	
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	/**
+	 * The amount of writes that were given up on after failing more than the maximum amount of retries
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * How many times a failed background write is retried (each time after the maximum delay) before it is dropped
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+	
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+}
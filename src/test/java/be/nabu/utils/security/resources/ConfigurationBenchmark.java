@@ -0,0 +1,126 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
+
+/**
+ * Compares the per-save cost of marshalling a keystore configuration with a fresh JAXBContext (the old behavior) to the cached contexts,
+ * and the cost of acquiring a new marshaller from a cached context to reusing the one of the current thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark {
+
+	@XmlRootElement(name = "keystore")
+	public static class BenchmarkKeyStoreConfiguration extends KeyStoreConfiguration {
+		// the base configuration has no root element
+	}
+	
+	private KeyStoreConfiguration configuration;
+	private ResourceConfigurationHandler handler;
+	private byte [] marshalled;
+	
+	@Setup
+	public void setup() throws URISyntaxException, JAXBException {
+		configuration = new BenchmarkKeyStoreConfiguration();
+		configuration.setAlias("benchmark");
+		configuration.setPassword("password");
+		configuration.setUri(new URI("memory:/benchmark/keystore/benchmark.jks"));
+		for (int i = 0; i < 10; i++)
+			configuration.getKeyPasswords().put("key" + i, "password" + i);
+		handler = new ResourceConfigurationHandler(null, BenchmarkKeyStoreConfiguration.class);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		handler.marshal(configuration, output);
+		marshalled = output.toByteArray();
+	}
+	
+	/**
+	 * The cost of getting a marshaller for a save without marshalling anything
+	 */
+	@Benchmark
+	public Marshaller acquireMarshallerUncached() throws JAXBException {
+		return JAXBContextCache.getContext(BenchmarkKeyStoreConfiguration.class).createMarshaller();
+	}
+	
+	@Benchmark
+	public Marshaller acquireMarshallerCached() throws JAXBException {
+		return JAXBContextCache.getMarshaller(BenchmarkKeyStoreConfiguration.class);
+	}
+	
+	@Benchmark
+	public Unmarshaller acquireUnmarshallerUncached() throws JAXBException {
+		return JAXBContextCache.getContext(BenchmarkKeyStoreConfiguration.class).createUnmarshaller();
+	}
+	
+	@Benchmark
+	public Unmarshaller acquireUnmarshallerCached() throws JAXBException {
+		return JAXBContextCache.getUnmarshaller(BenchmarkKeyStoreConfiguration.class);
+	}
+	
+	@Benchmark
+	public byte [] marshalUncached() throws JAXBException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		JAXBContext.newInstance(BenchmarkKeyStoreConfiguration.class).createMarshaller().marshal(configuration, output);
+		return output.toByteArray();
+	}
+	
+	@Benchmark
+	public byte [] marshalCached() throws JAXBException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		handler.marshal(configuration, output);
+		return output.toByteArray();
+	}
+	
+	@Benchmark
+	public Object unmarshalUncached() throws JAXBException {
+		return JAXBContext.newInstance(BenchmarkKeyStoreConfiguration.class).createUnmarshaller().unmarshal(new ByteArrayInputStream(marshalled));
+	}
+	
+	@Benchmark
+	public KeyStoreConfiguration unmarshalCached() throws JAXBException {
+		return ResourceConfigurationHandler.unmarshal(new ByteArrayInputStream(marshalled), BenchmarkKeyStoreConfiguration.class);
+	}
+}
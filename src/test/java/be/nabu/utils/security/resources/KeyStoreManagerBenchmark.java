@@ -0,0 +1,164 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.security.auth.x500.X500Principal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.resources.ResourceUtils;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.utils.security.BCSecurityUtils;
+import be.nabu.utils.security.KeyPairType;
+import be.nabu.utils.security.SSLContextType;
+import be.nabu.utils.security.SecurityUtils;
+import be.nabu.utils.security.StoreType;
+
+/**
+ * The hot paths of the manager and its keystores, all against the in-memory resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyStoreManagerBenchmark {
+
+	private ManageableContainer<?> target;
+	private KeyStoreManagerImpl manager;
+	private ManagedKeyStoreImpl keystore;
+	private KeyPair pair;
+	private X509Certificate certificate;
+
+	/**
+	 * A new manager for every invocation, so the keystore has to be loaded from its resource
+	 */
+	@State(Scope.Thread)
+	public static class Cold {
+		private KeyStoreManagerImpl manager;
+
+		@Setup(Level.Invocation)
+		public void setup(KeyStoreManagerBenchmark benchmark) throws IOException {
+			manager = new KeyStoreManagerImpl((ReadableResource) benchmark.target.getChild("configuration.xml"));
+		}
+	}
+
+	/**
+	 * A keystore of its own so modifications do not influence the other benchmarks
+	 */
+	@State(Scope.Benchmark)
+	public static class Modification {
+		@Param({ "true", "false" })
+		private boolean saveOnChange;
+		private ManagedKeyStoreImpl keystore;
+
+		@Setup
+		public void setup(KeyStoreManagerBenchmark benchmark) throws IOException {
+			keystore = (ManagedKeyStoreImpl) benchmark.manager.createKeyStore("modification", "password", StoreType.JKS);
+			keystore.setSaveOnChange(saveOnChange);
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/benchmark/" + UUID.randomUUID()), null);
+		manager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystore = (ManagedKeyStoreImpl) manager.createKeyStore("benchmark", "password", StoreType.JKS);
+		pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("benchmark", null, null, null, null, null);
+		certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("key", pair.getPrivate(), new X509Certificate[] { certificate }, "password");
+	}
+
+	@Benchmark
+	public ManagedKeyStoreImpl getKeyStoreWarm() throws IOException {
+		return manager.getKeyStore("benchmark");
+	}
+
+	@Benchmark
+	public ManagedKeyStoreImpl getKeyStoreCold(Cold cold) throws IOException {
+		return cold.manager.getKeyStore("benchmark");
+	}
+
+	/**
+	 * Opening the manager reads and indexes its configuration, the keystores themselves are loaded on first use
+	 */
+	@Benchmark
+	public KeyStoreManagerImpl openManager() throws IOException {
+		return new KeyStoreManagerImpl((ReadableResource) target.getChild("configuration.xml"));
+	}
+
+	@Benchmark
+	public void saveKeyStore() throws IOException {
+		keystore.save();
+	}
+
+	@Benchmark
+	public void saveConfiguration() throws IOException {
+		manager.saveConfiguration();
+	}
+
+	/**
+	 * The keystore is deleted again so the configuration does not grow with every invocation
+	 */
+	@Benchmark
+	public void createKeyStore() throws IOException {
+		manager.createKeyStore("created", "password", StoreType.JKS);
+		manager.deleteKeyStore("created");
+	}
+
+	@Benchmark
+	public void setAndDelete(Modification modification) throws KeyStoreException, IOException {
+		modification.keystore.set("key", pair.getPrivate(), new X509Certificate[] { certificate }, "password");
+		modification.keystore.delete("key");
+	}
+
+	@Benchmark
+	public PrivateKey getPrivateKey() throws KeyStoreException {
+		return keystore.getPrivateKey("key");
+	}
+
+	@Benchmark
+	public SSLContext newContext() throws KeyStoreException {
+		return keystore.newContext(SSLContextType.TLS);
+	}
+}
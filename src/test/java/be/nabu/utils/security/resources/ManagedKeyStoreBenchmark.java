@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.resources.ResourceUtils;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.utils.security.BCSecurityUtils;
+import be.nabu.utils.security.KeyPairType;
+import be.nabu.utils.security.SecurityUtils;
+import be.nabu.utils.security.StoreType;
+
+/**
+ * Measures the read throughput of a keystore at 1, 8 and 32 reader threads while a single writer keeps changing it.
+ * Every write invalidates the entry cache so the readers regularly have to go to the key store itself.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManagedKeyStoreBenchmark {
+
+	private ManagedKeyStoreImpl keystore;
+	private X509Certificate certificate;
+
+	@Setup
+	public void setup() throws Exception {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/benchmark/" + UUID.randomUUID()), null);
+		KeyStoreManagerImpl manager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystore = (ManagedKeyStoreImpl) manager.createKeyStore("benchmark", "password", StoreType.JKS);
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("benchmark", null, null, null, null, null);
+		certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("key", pair.getPrivate(), new X509Certificate[] { certificate }, "password");
+		// the writer only measures the locking, not the persistence
+		keystore.setSaveOnChange(false);
+	}
+
+	@Benchmark
+	@Group("read1")
+	@GroupThreads(1)
+	public PrivateKey read1() throws KeyStoreException {
+		return keystore.getPrivateKey("key");
+	}
+
+	@Benchmark
+	@Group("read1")
+	@GroupThreads(1)
+	public void write1() throws Exception {
+		write();
+	}
+
+	@Benchmark
+	@Group("read8")
+	@GroupThreads(8)
+	public PrivateKey read8() throws KeyStoreException {
+		return keystore.getPrivateKey("key");
+	}
+
+	@Benchmark
+	@Group("read8")
+	@GroupThreads(1)
+	public void write8() throws Exception {
+		write();
+	}
+
+	@Benchmark
+	@Group("read32")
+	@GroupThreads(32)
+	public PrivateKey read32() throws KeyStoreException {
+		return keystore.getPrivateKey("key");
+	}
+
+	@Benchmark
+	@Group("read32")
+	@GroupThreads(1)
+	public void write32() throws Exception {
+		write();
+	}
+
+	private void write() throws Exception {
+		keystore.set("certificate", certificate);
+	}
+}
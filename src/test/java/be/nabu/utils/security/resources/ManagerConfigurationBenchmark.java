@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.utils.security.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import be.nabu.libs.resources.ResourceUtils;
+import be.nabu.libs.resources.api.ManageableContainer;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.WritableResource;
+import be.nabu.utils.security.resources.ConfigurationBenchmark.BenchmarkKeyStoreConfiguration;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
+
+/**
+ * Marshalling and unmarshalling a manager with the given amount of keystores and a keystore with the given amount of key passwords.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManagerConfigurationBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	private int size;
+
+	private KeyStoreManagerConfiguration manager;
+	private KeyStoreConfiguration keystore;
+	private ResourceConfigurationHandler handler;
+	private byte [] marshalledManager, marshalledKeyStore;
+	private ReadableResource resource;
+	private KeyStoreManagerImpl opened;
+
+	@Setup
+	public void setup() throws URISyntaxException, JAXBException, IOException {
+		manager = new KeyStoreManagerConfiguration();
+		List<KeyStoreConfiguration> keystores = new ArrayList<KeyStoreConfiguration>();
+		for (int i = 0; i < size; i++)
+			keystores.add(newKeyStore(new KeyStoreConfiguration(), "keystore" + i, 1));
+		manager.setKeyStores(keystores);
+		keystore = newKeyStore(new BenchmarkKeyStoreConfiguration(), "keystore", size);
+		handler = new ResourceConfigurationHandler(null, BenchmarkKeyStoreConfiguration.class);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.marshal(output);
+		marshalledManager = output.toByteArray();
+		output = new ByteArrayOutputStream();
+		handler.marshal(keystore, output);
+		marshalledKeyStore = output.toByteArray();
+
+		// the same manager as a resource for the benchmarks that go through the manager itself
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/benchmark/" + UUID.randomUUID()), null);
+		resource = (ReadableResource) target.create("configuration.xml", "application/xml");
+		SafeResourceWriter.write((WritableResource) resource, marshalledManager);
+		opened = new KeyStoreManagerImpl(resource);
+	}
+
+	private static KeyStoreConfiguration newKeyStore(KeyStoreConfiguration configuration, String alias, int keys) throws URISyntaxException {
+		configuration.setAlias(alias);
+		configuration.setPassword("password");
+		configuration.setUri(new URI("memory:/benchmark/keystore/" + alias + ".jks"));
+		for (int i = 0; i < keys; i++)
+			configuration.getKeyPasswords().put("key" + i, "password" + i);
+		return configuration;
+	}
+
+	@Benchmark
+	public byte [] marshalManager() throws JAXBException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		manager.marshal(output);
+		return output.toByteArray();
+	}
+
+	@Benchmark
+	public KeyStoreManagerConfiguration unmarshalManager() throws JAXBException {
+		return KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(marshalledManager));
+	}
+
+	/**
+	 * A cold start: the configuration is read, parsed and indexed
+	 */
+	@Benchmark
+	public KeyStoreManagerImpl openManager() throws IOException {
+		return new KeyStoreManagerImpl(resource);
+	}
+
+	/**
+	 * Marshals the manager and writes it safely to its resource
+	 */
+	@Benchmark
+	public void saveManager() throws IOException {
+		opened.saveConfiguration();
+	}
+
+	@Benchmark
+	public byte [] marshalKeyStore() throws JAXBException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		handler.marshal(keystore, output);
+		return output.toByteArray();
+	}
+
+	@Benchmark
+	public KeyStoreConfiguration unmarshalKeyStore() throws JAXBException {
+		return ResourceConfigurationHandler.unmarshal(new ByteArrayInputStream(marshalledKeyStore), BenchmarkKeyStoreConfiguration.class);
+	}
+}
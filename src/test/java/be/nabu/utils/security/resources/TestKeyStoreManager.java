@@ -17,7 +17,11 @@
 
 package be.nabu.utils.security.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyPair;
@@ -27,22 +31,62 @@ import java.security.NoSuchProviderException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.net.ssl.SSLContext;
 import javax.security.auth.x500.X500Principal;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
 
 import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
 import be.nabu.libs.resources.ResourceUtils;
 import be.nabu.libs.resources.api.ManageableContainer;
 import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.WritableResource;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.security.BCSecurityUtils;
 import be.nabu.utils.security.KeyPairType;
 import be.nabu.utils.security.KeyStoreHandler;
+import be.nabu.utils.security.SSLContextType;
 import be.nabu.utils.security.SecurityUtils;
 import be.nabu.utils.security.StoreType;
 import be.nabu.utils.security.api.KeyStoreManager;
 import be.nabu.utils.security.api.ManagedKeyStore;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreConfiguration;
+import be.nabu.utils.security.resources.KeyStoreManagerConfiguration.KeyStoreReference;
 
 public class TestKeyStoreManager extends TestCase {
 
@@ -86,5 +130,1267 @@ public class TestKeyStoreManager extends TestCase {
 		// by default it is encrypted into the form ${encrypted:<base64>}
 		assertTrue(configuration.indexOf("testpassword") == -1);
 	}
+	
+	public void testReopen() throws URISyntaxException, KeyStoreException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/reopen"), null);
+		
+		KeyStoreManager keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Existing", "testpassword", StoreType.JKS);
+		
+		// opening it again should not overwrite the existing configuration
+		KeyStoreManager reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertEquals(1, reopened.listKeystores().size());
+		assertNotNull(reopened.getKeyStore("Existing"));
+	}
+	
+	public void testConcurrentAccess() throws URISyntaxException, KeyStoreException, IOException, InterruptedException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/concurrent"), null);
+		final int shared = 4, contested = 3, threads = 8, iterations = 25;
+		KeyStoreManagerImpl creator = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		for (int i = 0; i < shared; i++)
+			creator.createKeyStore("shared" + i, "testpassword", StoreType.JKS);
+		
+		// reopened so none of the keystores are loaded yet
+		final KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		final RecordingMetrics metrics = new RecordingMetrics();
+		keystoreManager.setMetrics(metrics);
+		
+		final CyclicBarrier barrier = new CyclicBarrier(threads);
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final int thread = i;
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						for (int j = 0; j < iterations; j++) {
+							for (int k = 0; k < shared; k++) {
+								if (keystoreManager.getKeyStore("shared" + k) == null)
+									failures.add(new AssertionError("Could not get shared" + k));
+							}
+							String alias = "contested" + ((thread + j) % contested);
+							if (j % 2 == 0) {
+								try {
+									keystoreManager.createKeyStore(alias, "testpassword", StoreType.JKS);
+								}
+								catch (IllegalArgumentException e) {
+									// created by another thread
+								}
+							}
+							else
+								keystoreManager.deleteKeyStore(alias);
+						}
+					}
+					catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers)
+			worker.join();
+		
+		assertEquals(failures.toString(), 0, failures.size());
+		// single flight: the shared keystores are loaded once no matter how many threads asked for them at the same time
+		for (int i = 0; i < shared; i++)
+			assertEquals(1, metrics.getCount("shared" + i, KeyStoreMetrics.Operation.LOAD));
+		
+		// no duplicates and what is on disk matches what is in memory
+		List<String> aliases = keystoreManager.listKeystores();
+		assertEquals(aliases.size(), new HashSet<String>(aliases).size());
+		assertEquals(new HashSet<String>(aliases), new HashSet<String>(KeyStoreManagerImpl.getManager(target, "configuration.xml").listKeystores()));
+		for (int i = 0; i < shared; i++)
+			assertTrue(aliases.contains("shared" + i));
+	}
+	
+	public void testRecoverTruncated() throws URISyntaxException, KeyStoreException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/recover"), null);
+		KeyStoreManagerImpl.getManager(target, "configuration.xml").createKeyStore("Survivor", "testpassword", StoreType.JKS);
+		byte [] content = IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable());
+		
+		// a crash after the temporary copy was marked complete but while the target was being overwritten
+		SafeResourceWriter.write((WritableResource) target.create("configuration.xml.tmp", "application/xml"), content);
+		mark(target, "configuration.xml", 0);
+		truncate(target.getChild("configuration.xml"));
+		
+		// the configuration is restored rather than replaced by an empty one
+		KeyStoreManagerImpl reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertEquals(Arrays.asList("Survivor"), reopened.listKeystores());
+		assertNotNull(reopened.getKeyStore("Survivor"));
+		assertNull(target.getChild("configuration.xml.tmp"));
+		assertNull(target.getChild("configuration.xml.complete"));
+		assertTrue(Arrays.equals(content, IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable())));
+		
+		// without a complete temporary copy an empty configuration is started
+		truncate(target.getChild("configuration.xml"));
+		assertEquals(0, KeyStoreManagerImpl.getManager(target, "configuration.xml").listKeystores().size());
+	}
+	
+	public void testRecoverLease() throws URISyntaxException, KeyStoreException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/recover-lease"), null);
+		KeyStoreManagerImpl.getManager(target, "configuration.xml").createKeyStore("Survivor", "testpassword", StoreType.JKS);
+		byte [] content = IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable());
+		
+		// another node is overwriting the configuration right now
+		SafeResourceWriter.write((WritableResource) target.create("configuration.xml.tmp", "application/xml"), content);
+		mark(target, "configuration.xml", System.currentTimeMillis());
+		truncate(target.getChild("configuration.xml"));
+		
+		// readers get the complete copy and the write of the other node is left alone
+		KeyStoreManagerImpl reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertEquals(Arrays.asList("Survivor"), reopened.listKeystores());
+		assertTrue(Arrays.equals(content, SafeResourceWriter.read((ReadableResource) target.getChild("configuration.xml"))));
+		assertNotNull(target.getChild("configuration.xml.tmp"));
+		assertNotNull(target.getChild("configuration.xml.complete"));
+		assertEquals(0, IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable()).length);
+		
+		// once the lease expired, the write is considered abandoned and recovered
+		mark(target, "configuration.xml", System.currentTimeMillis() - SafeResourceWriter.getLease() - 1000);
+		assertEquals(Arrays.asList("Survivor"), KeyStoreManagerImpl.getManager(target, "configuration.xml").listKeystores());
+		assertNull(target.getChild("configuration.xml.tmp"));
+		assertNull(target.getChild("configuration.xml.complete"));
+		assertTrue(Arrays.equals(content, IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable())));
+	}
+	
+	/**
+	 * Marks the temporary copy of the resource complete as another node would at the given time
+	 */
+	private static void mark(ManageableContainer<?> container, String name, long started) throws IOException {
+		Resource marker = container.getChild(name + ".complete");
+		if (marker == null)
+			marker = container.create(name + ".complete", "text/plain");
+		SafeResourceWriter.write((WritableResource) marker, ("another-node\n" + started + "\n1").getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Opening the resource for writing overwrites it, closing it right away leaves it empty
+	 */
+	private static void truncate(Resource resource) throws IOException {
+		((WritableResource) resource).getWritable().close();
+	}
+	
+	public void testSplit() throws URISyntaxException, KeyStoreException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/split"), null);
+		
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Before", "testpassword", StoreType.JKS);
+		keystoreManager.split();
+		assertTrue(keystoreManager.isSplit());
+		keystoreManager.createKeyStore("After", "testpassword", StoreType.JKS);
+		
+		// the manager configuration only refers to the keystores
+		String configuration = new String(IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable()));
+		assertTrue(configuration.indexOf("testpassword") == -1);
+		assertTrue(configuration.indexOf("<uri>") == -1);
+		
+		KeyStoreManagerImpl reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertTrue(reopened.isSplit());
+		assertEquals(2, reopened.listKeystores().size());
+		assertEquals("testpassword", reopened.getKeyStore("Before").getPassword());
+		assertNotNull(reopened.getKeyStore("After"));
+		
+		reopened.deleteKeyStore("Before");
+		assertEquals(1, KeyStoreManagerImpl.getManager(target, "configuration.xml").listKeystores().size());
+	}
+	
+	public void testSplitEmpty() throws URISyntaxException, KeyStoreException, IOException, JAXBException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/split-empty"), null);
+		KeyStoreManagerImpl.getManager(target, "configuration.xml").split();
+		
+		// a split manager that does not refer to any keystore yet is still split once reopened
+		KeyStoreManagerImpl reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertTrue(reopened.isSplit());
+		reopened.createKeyStore("Later", "testpassword", StoreType.JKS);
+		String configuration = new String(IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable()));
+		assertTrue(configuration.indexOf("testpassword") == -1);
+		assertTrue(configuration.indexOf("<uri>") == -1);
+		
+		// the streamed form marks it as well
+		KeyStoreManagerConfiguration empty = new KeyStoreManagerConfiguration();
+		empty.setKeyStoreConfigurations(new ArrayList<KeyStoreReference>());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		StreamingConfiguration.write(output, empty);
+		assertNotNull(KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(output.toByteArray())).getKeyStoreConfigurations());
+	}
+	
+	public void testSplitMetrics() throws URISyntaxException, KeyStoreException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/split-metrics"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.split();
+		RecordingMetrics metrics = new RecordingMetrics();
+		keystoreManager.setMetrics(metrics);
+		
+		keystoreManager.createKeyStore("Measured", "testpassword", StoreType.JKS);
+		// the configuration of the keystore is written in a resource of its own, the manager only refers to it
+		assertEquals(1, metrics.getCount("Measured", KeyStoreMetrics.Operation.SAVE_CONFIGURATION));
+		long written = metrics.getWritten("Measured", KeyStoreMetrics.Operation.SAVE_CONFIGURATION);
+		ReadableResource configuration = (ReadableResource) ((ManageableContainer<?>) target.getChild("keystore-configurations")).iterator().next();
+		assertEquals(IOUtils.toBytes(configuration.getReadable()).length, written);
+		assertEquals(1, metrics.getCount(null, KeyStoreMetrics.Operation.SAVE_CONFIGURATION));
+		assertEquals(IOUtils.toBytes(((ReadableResource) target.getChild("configuration.xml")).getReadable()).length, metrics.getWritten(null, KeyStoreMetrics.Operation.SAVE_CONFIGURATION));
+	}
+	
+	public void testSnapshot() throws URISyntaxException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/snapshot"), null);
+		KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		
+		KeyStoreManagerImpl keystoreManager = new KeyStoreManagerImpl((ReadableResource) target.getChild("configuration.xml"), true);
+		keystoreManager.createKeyStore("Snapshotted", "testpassword", StoreType.JKS);
+		assertNotNull(target.getChild("configuration.xml.snapshot"));
+		
+		KeyStoreManagerConfiguration snapshot = ConfigurationSnapshot.read((ReadableResource) target.getChild("configuration.xml"));
+		assertNotNull(snapshot);
+		assertEquals("testpassword", snapshot.getKeyStore("Snapshotted").getPassword());
+		
+		KeyStoreManagerImpl reopened = new KeyStoreManagerImpl((ReadableResource) target.getChild("configuration.xml"), true);
+		assertEquals(1, reopened.listKeystores().size());
+		assertEquals(StoreType.JKS, reopened.getKeyStoreConfiguration("Snapshotted").getType());
+		
+		// an edit that keeps the size (and possibly the timestamp) of the xml still makes the snapshot stale
+		ReadableResource configuration = (ReadableResource) target.getChild("configuration.xml");
+		byte [] xml = IOUtils.toBytes(configuration.getReadable());
+		byte [] edited = new String(xml, "UTF-8").replace("Snapshotted.jks", "Snapshotter.jks").getBytes("UTF-8");
+		assertEquals(xml.length, edited.length);
+		assertFalse(Arrays.equals(xml, edited));
+		SafeResourceWriter.write((WritableResource) configuration, edited);
+		assertNull(ConfigurationSnapshot.read(configuration));
+		
+		reopened = new KeyStoreManagerImpl(configuration, true);
+		assertTrue(reopened.getKeyStoreConfiguration("Snapshotted").getUri().toString().endsWith("Snapshotter.jks"));
+		// and it was rebuilt from the edited xml
+		snapshot = ConfigurationSnapshot.read(configuration);
+		assertNotNull(snapshot);
+		assertTrue(snapshot.getKeyStore("Snapshotted").getUri().toString().endsWith("Snapshotter.jks"));
+	}
+	
+	public void testEventBus() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/events"), null);
+		// delivered on the publishing thread so we don't have to wait for it
+		LoopbackEventBus bus = new LoopbackEventBus(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		KeyStoreManagerImpl first = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		KeyStoreManagerImpl second = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		first.setEventBus(bus);
+		second.setEventBus(bus);
+		
+		ManagedKeyStore keystore = first.createKeyStore("Shared", "testpassword", StoreType.JKS);
+		assertEquals(1, second.listKeystores().size());
+		ManagedKeyStore copy = second.getKeyStore("Shared");
+		assertNotNull(copy);
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("shared", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("shared", certificate);
+		// reloaded in place
+		assertEquals(certificate, copy.getCertificate("shared"));
+		
+		first.deleteKeyStore("Shared");
+		assertEquals(0, second.listKeystores().size());
+		assertNull(second.getKeyStore("Shared"));
+	}
+	
+	public void testEventBusWriteBehind() throws URISyntaxException, IOException {
+		final ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/events-write-behind"), null);
+		LoopbackEventBus bus = new LoopbackEventBus(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		KeyStoreManagerImpl first = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		first.setEventBus(bus);
+		first.createKeyStore("Deleted", "testpassword", StoreType.JKS);
+		// nothing would be written for an hour
+		WriteBehindFlusher flusher = new WriteBehindFlusher(1, 1, TimeUnit.HOURS);
+		first.setFlusher(flusher);
+		
+		// a node that is told about the delete reads the configuration from storage
+		final List<List<String>> seen = new ArrayList<List<String>>();
+		bus.subscribe(new KeyStoreEventBus.Listener() {
+			@Override
+			public void handle(KeyStoreEvent event) {
+				if (event.getType() == KeyStoreEvent.Type.DELETED) {
+					try {
+						seen.add(KeyStoreManagerImpl.getManager(target, "configuration.xml").listKeystores());
+					}
+					catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		});
+		first.deleteKeyStore("Deleted");
+		assertEquals(1, seen.size());
+		assertEquals(0, seen.get(0).size());
+		flusher.close();
+	}
+	
+	public void testCertificateIndex() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/index"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		ManagedKeyStore first = keystoreManager.createKeyStore("First", "testpassword", StoreType.JKS);
+		ManagedKeyStore second = keystoreManager.createKeyStore("Second", "testpassword", StoreType.JKS);
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("indexed", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		first.set("indexed", certificate);
+		
+		CertificateIndex index = keystoreManager.getCertificateIndex();
+		assertEquals(Arrays.asList(new CertificateIndex.Location("First", "indexed")), index.findBySubject(principal));
+		assertEquals(1, index.findByIssuerAndSerialNumber(principal, certificate.getSerialNumber()).size());
+		
+		// later changes are picked up
+		second.set("copy", certificate);
+		assertEquals(2, index.find(certificate).size());
+		first.delete("indexed");
+		assertEquals(Arrays.asList(new CertificateIndex.Location("Second", "copy")), index.find(certificate));
+		keystoreManager.deleteKeyStore("Second");
+		assertTrue(index.findBySubject(principal).isEmpty());
+		assertNull(index.getCertificate(new CertificateIndex.Location("Second", "copy")));
+	}
+	
+	public void testCertificateIndexBuild() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/index-build"), null);
+		KeyStoreManagerImpl creator = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("built", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		creator.createKeyStore("Indexed", "testpassword", StoreType.JKS).set("built", certificate);
+		creator.createKeyStore("Broken", "testpassword", StoreType.JKS);
+		SafeResourceWriter.write((WritableResource) creator.getResourceFactory().resolve(creator.getKeyStoreConfiguration("Broken").getUri(), null), new byte [] { 1, 2, 3, 4 });
+		
+		// all the keystores are loaded when the index is built
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		RecordingMetrics metrics = new RecordingMetrics();
+		keystoreManager.setMetrics(metrics);
+		CertificateIndex index = keystoreManager.getCertificateIndex();
+		assertEquals(1, metrics.getCount("Indexed", KeyStoreMetrics.Operation.LOAD));
+		assertEquals(1, metrics.getCount("Broken", KeyStoreMetrics.Operation.LOAD));
+		assertTrue(index.getFailures().containsKey("Broken"));
+		
+		// lookups never load anything, not even a keystore that failed to load
+		assertEquals(Arrays.asList(new CertificateIndex.Location("Indexed", "built")), index.findBySubject(principal));
+		assertTrue(index.findBySubject(SecurityUtils.createX500Principal("unknown", null, null, null, null, null)).isEmpty());
+		keystoreManager.getKeyStore("Indexed").delete("built");
+		assertTrue(index.find(certificate).isEmpty());
+		assertEquals(1, metrics.getCount("Indexed", KeyStoreMetrics.Operation.LOAD));
+		assertEquals(1, metrics.getCount("Broken", KeyStoreMetrics.Operation.LOAD));
+	}
+	
+	public void testIndexedKeyManager() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/sni"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		ManagedKeyStoreImpl keystore = (ManagedKeyStoreImpl) keystoreManager.createKeyStore("Server", "testpassword", StoreType.JKS);
+		
+		for (String host : Arrays.asList("a.example.com", "*.example.org")) {
+			KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+			X500Principal principal = SecurityUtils.createX500Principal(host, null, null, null, null, null);
+			X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+			keystore.set(host, pair.getPrivate(), new X509Certificate[] { certificate }, "testpassword");
+		}
+		IndexedKeyManager keyManager = keystore.getKeyManager();
+		assertEquals("a.example.com", keyManager.chooseServerAlias("RSA", "A.example.com"));
+		assertEquals("*.example.org", keyManager.chooseServerAlias("RSA", "b.example.org"));
+		assertNull(keyManager.chooseServerAlias("EC", "b.example.org"));
+		assertNotNull(keyManager.getPrivateKey("a.example.com"));
+		
+		// the index follows the keystore
+		keystore.delete("*.example.org");
+		assertEquals("a.example.com", keyManager.chooseServerAlias("RSA", "b.example.org"));
+		
+		keystore.setIndexedKeyManager(true);
+		assertNotNull(keystore.newContext(SSLContextType.TLS));
+	}
+	
+	public void testCompositeTrustManager() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/trust"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		ManagedKeyStore first = keystoreManager.createKeyStore("First", "testpassword", StoreType.JKS);
+		keystoreManager.createKeyStore("Second", "testpassword", StoreType.JKS);
+		
+		X509Certificate [] certificates = new X509Certificate[2];
+		for (int i = 0; i < certificates.length; i++) {
+			KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+			X500Principal principal = SecurityUtils.createX500Principal("trusted" + i, null, null, null, null, null);
+			certificates[i] = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		}
+		first.set("trusted", certificates[0]);
+		
+		CompositeTrustManager trustManager = keystoreManager.newTrustManager(Arrays.asList("First", "Second"));
+		trustManager.checkServerTrusted(new X509Certificate[] { certificates[0] }, "RSA");
+		trustManager.checkServerTrusted(new X509Certificate[] { certificates[0] }, "RSA");
+		assertEquals(1, trustManager.getCacheHits());
+		try {
+			trustManager.checkServerTrusted(new X509Certificate[] { certificates[1] }, "RSA");
+			fail("The certificate is not trusted");
+		}
+		catch (CertificateException e) {
+			// expected
+		}
+		
+		// trusted once it is added to one of the keystores
+		keystoreManager.getKeyStore("Second").set("trusted", certificates[1]);
+		trustManager.checkServerTrusted(new X509Certificate[] { certificates[1] }, "RSA");
+		assertEquals(2, trustManager.getAcceptedIssuers().length);
+		assertNotNull(keystoreManager.newContext(SSLContextType.TLS, null, Arrays.asList("First", "Second")));
+	}
+	
+	public void testTrustManagerUsage() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, OperatorCreationException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/trust-usage"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		ManagedKeyStore trusted = keystoreManager.createKeyStore("Trusted", "testpassword", StoreType.JKS);
+		
+		X509Certificate server = newCertificate("server", KeyPurposeId.id_kp_serverAuth, KeyUsage.digitalSignature | KeyUsage.keyEncipherment);
+		X509Certificate client = newCertificate("client", KeyPurposeId.id_kp_clientAuth, KeyUsage.digitalSignature);
+		X509Certificate signing = newCertificate("signing", KeyPurposeId.id_kp_serverAuth, KeyUsage.digitalSignature);
+		X509Certificate any = newCertificate("any", KeyPurposeId.anyExtendedKeyUsage, KeyUsage.digitalSignature | KeyUsage.keyEncipherment);
+		trusted.set("server", server);
+		trusted.set("client", client);
+		trusted.set("signing", signing);
+		trusted.set("any", any);
+		
+		CompositeTrustManager trustManager = keystoreManager.newTrustManager(Arrays.asList("Trusted"));
+		trustManager.checkServerTrusted(new X509Certificate[] { server }, "RSA");
+		trustManager.checkServerTrusted(new X509Certificate[] { server }, "ECDHE_RSA");
+		// the validation of the server is cached but does not carry over to the other direction
+		assertUntrusted(trustManager, server, "RSA", false);
+		trustManager.checkClientTrusted(new X509Certificate[] { client }, "RSA");
+		assertUntrusted(trustManager, client, "RSA", true);
+		
+		// a key that can only sign can not be used for the rsa key exchange
+		trustManager.checkServerTrusted(new X509Certificate[] { signing }, "ECDHE_RSA");
+		assertUntrusted(trustManager, signing, "RSA", true);
+		assertUntrusted(trustManager, signing, "ECDH_RSA", true);
+		
+		trustManager.checkServerTrusted(new X509Certificate[] { any }, "RSA");
+		trustManager.checkClientTrusted(new X509Certificate[] { any }, "RSA");
+	}
+	
+	private static void assertUntrusted(CompositeTrustManager trustManager, X509Certificate certificate, String authType, boolean server) {
+		try {
+			if (server)
+				trustManager.checkServerTrusted(new X509Certificate[] { certificate }, authType);
+			else
+				trustManager.checkClientTrusted(new X509Certificate[] { certificate }, authType);
+			fail("The certificate " + certificate.getSubjectX500Principal() + " should not be trusted for " + authType);
+		}
+		catch (CertificateException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * A self signed certificate with the given extended key usage and key usage
+	 */
+	private static X509Certificate newCertificate(String name, KeyPurposeId purpose, int keyUsage) throws NoSuchAlgorithmException, NoSuchProviderException, CertificateException, OperatorCreationException, IOException {
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal(name, null, null, null, null, null);
+		long now = new Date().getTime();
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(principal, BigInteger.valueOf(now), new Date(now - 1000*60), new Date(now + 1000*60*60*24), principal, pair.getPublic());
+		builder.addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(purpose));
+		builder.addExtension(Extension.keyUsage, true, new KeyUsage(keyUsage));
+		return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(pair.getPrivate())));
+	}
+	
+	public void testExpiryScanner() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/expiry"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		ManagedKeyStore keystore = keystoreManager.createKeyStore("Expiring", "testpassword", StoreType.JKS);
+		keystoreManager.createKeyStore("Empty", "testpassword", StoreType.JKS);
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("expiring", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("expiring", certificate);
+		
+		ExpiryScanner scanner = new ExpiryScanner(keystoreManager, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		}, 1, TimeUnit.HOURS);
+		final List<Long> thresholds = new ArrayList<Long>();
+		scanner.addListener(new ExpiryScanner.Listener() {
+			@Override
+			public void expiring(ExpiryScanner.Expiry expiry, long threshold) {
+				thresholds.add(threshold);
+			}
+		});
+		scanner.scan();
+		// only the most urgent threshold that was crossed
+		assertEquals(Arrays.asList(TimeUnit.DAYS.toMillis(1)), thresholds);
+		assertEquals(2, scanner.getRescanned());
+		
+		// nothing changed, nothing is read or notified again
+		scanner.scan();
+		assertEquals(1, thresholds.size());
+		assertEquals(2, scanner.getRescanned());
+		
+		keystore.delete("expiring");
+		scanner.scan();
+		assertEquals(3, scanner.getRescanned());
+		assertTrue(scanner.getExpiries().isEmpty());
+		scanner.close();
+	}
+	
+	public void testAsync() throws URISyntaxException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, InterruptedException, ExecutionException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/async"), null);
+		AsyncKeyStoreManager keystoreManager = new AsyncKeyStoreManager(KeyStoreManagerImpl.getManager(target, "configuration.xml"));
+		AsyncManagedKeyStore keystore = keystoreManager.createKeyStore("Async", "testpassword", StoreType.JKS).get();
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("async", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		// changes are applied in order, the read is requested once the change is done
+		keystore.set("first", certificate);
+		keystore.rename("first", "second").get();
+		assertEquals(certificate, keystore.getCertificate("second").get());
+		
+		try {
+			keystoreManager.createKeyStore("Async", "testpassword", StoreType.JKS).get();
+			fail("The keystore already exists");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		keystoreManager.deleteKeyStore("Async").get();
+		assertNull(keystoreManager.getKeyStore("Async").get());
+		
+		// the executor it created is shut down with it
+		keystoreManager.close();
+		assertTrue(((ExecutorService) keystoreManager.getExecutor()).isShutdown());
+		try {
+			keystoreManager.getKeyStore("Async").get();
+			fail("The executor is shut down");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+	
+	public void testAsyncRejected() throws URISyntaxException, IOException, InterruptedException, ExecutionException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/async-rejected"), null);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		AsyncKeyStoreManager keystoreManager = new AsyncKeyStoreManager(KeyStoreManagerImpl.getManager(target, "configuration.xml"), executor);
+		AsyncManagedKeyStore keystore = keystoreManager.createKeyStore("Rejected", "testpassword", StoreType.JKS).get();
+		keystore.save().get();
+		keystoreManager.deleteKeyStore("Rejected").get();
+		// the serializers are dropped once they have nothing left to do
+		long timeout = System.currentTimeMillis() + 5000;
+		while (keystoreManager.getPendingAliases() > 0 && System.currentTimeMillis() < timeout)
+			Thread.sleep(10);
+		assertEquals(0, keystoreManager.getPendingAliases());
+		
+		// a change that can no longer be run completes with the rejection instead of hanging
+		executor.shutdown();
+		try {
+			keystoreManager.createKeyStore("Rejected", "testpassword", StoreType.JKS).get(5, TimeUnit.SECONDS);
+			fail("The executor no longer accepts tasks");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		catch (TimeoutException e) {
+			fail("The change was dropped without completing");
+		}
+		assertEquals(0, keystoreManager.getPendingAliases());
+		
+		// an executor that was passed in belongs to the caller
+		executor = Executors.newSingleThreadExecutor();
+		new AsyncKeyStoreManager(keystoreManager.getManager(), executor).close();
+		assertFalse(executor.isShutdown());
+		executor.shutdown();
+	}
+	
+	public void testMutate() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, InterruptedException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/mutate"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Mutated", "testpassword", StoreType.JKS);
+		final ManagedKeyStoreImpl keystore = keystoreManager.getKeyStore("Mutated");
+		
+		final KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("mutated", null, null, null, null, null);
+		final X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("original", certificate);
+		keystore.set("original-key", pair.getPrivate(), new X509Certificate[] { certificate }, "keypassword");
+		
+		RecordingMetrics metrics = new RecordingMetrics();
+		keystoreManager.setMetrics(metrics);
+		
+		// anything thrown by the mutation rolls it back, errors included
+		try {
+			keystore.mutate(new ManagedKeyStoreImpl.Mutation() {
+				@Override
+				public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+					keystore.delete("original");
+					keystore.delete("original-key");
+					keystore.set("added-key", pair.getPrivate(), new X509Certificate[] { certificate }, "otherpassword");
+					throw new Error("failed");
+				}
+			});
+			fail("The error should be rethrown");
+		}
+		catch (Error e) {
+			assertEquals("failed", e.getMessage());
+		}
+		assertFalse(keystore.isInBatch());
+		assertEquals(certificate, keystore.getCertificate("original"));
+		assertEquals(pair.getPrivate(), keystore.getPrivateKey("original-key"));
+		assertEquals("keypassword", keystore.getPassword("original-key"));
+		assertNull(keystore.getCertificate("added-key"));
+		assertNull(keystore.getPassword("added-key"));
+		assertEquals(0, metrics.getCount("Mutated", KeyStoreMetrics.Operation.SAVE));
+		
+		// the batch lock was released, another thread can modify the keystore
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread other = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					keystore.set("other", certificate);
+				}
+				catch (Throwable e) {
+					failures.add(e);
+				}
+			}
+		});
+		other.start();
+		other.join(10000);
+		assertFalse(other.isAlive());
+		assertEquals(failures.toString(), 0, failures.size());
+		assertEquals(1, metrics.getCount("Mutated", KeyStoreMetrics.Operation.SAVE));
+		
+		// a successful mutation is written once, no matter how many modifications it contains
+		keystore.mutate(new ManagedKeyStoreImpl.Mutation() {
+			@Override
+			public void mutate(ManagedKeyStoreImpl keystore) throws KeyStoreException, IOException {
+				keystore.delete("original");
+				keystore.delete("other");
+				keystore.set("added-key", pair.getPrivate(), new X509Certificate[] { certificate }, "otherpassword");
+			}
+		});
+		assertEquals(2, metrics.getCount("Mutated", KeyStoreMetrics.Operation.SAVE));
+		
+		ManagedKeyStoreImpl reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml").getKeyStore("Mutated");
+		assertNull(reopened.getCertificate("original"));
+		assertNull(reopened.getCertificate("other"));
+		assertEquals(pair.getPrivate(), reopened.getPrivateKey("added-key"));
+		assertEquals("otherpassword", reopened.getPassword("added-key"));
+		assertEquals("keypassword", reopened.getPassword("original-key"));
+	}
+	
+	public void testWriteBehindClosing() throws IOException, InterruptedException {
+		final AtomicLong writes = new AtomicLong();
+		// a scheduler that was shut down by its owner does not lose the write
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		WriteBehindFlusher flusher = new WriteBehindFlusher(scheduler, 1, 1, TimeUnit.HOURS);
+		scheduler.shutdown();
+		flusher.schedule("key", new WriteBehindFlusher.Write() {
+			@Override
+			public void write() throws IOException {
+				writes.incrementAndGet();
+			}
+		});
+		assertEquals(1, writes.get());
+		assertFalse(flusher.isPending("key"));
+		
+		// writes that race with the close are either flushed by it or written right away, never rejected
+		final WriteBehindFlusher closing = new WriteBehindFlusher(1, 1, TimeUnit.HOURS);
+		final AtomicBoolean failed = new AtomicBoolean(), last = new AtomicBoolean();
+		Thread scheduling = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= 10000; i++) {
+					final int state = i;
+					try {
+						closing.schedule("key", new WriteBehindFlusher.Write() {
+							@Override
+							public void write() throws IOException {
+								if (state == 10000)
+									last.set(true);
+							}
+						});
+					}
+					catch (Exception e) {
+						failed.set(true);
+					}
+				}
+			}
+		});
+		scheduling.start();
+		closing.close();
+		scheduling.join();
+		assertFalse(failed.get());
+		assertTrue(last.get());
+		assertFalse(closing.isPending("key"));
+	}
+	
+	public void testWriteBehind() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, InterruptedException {
+		// writes for the same key within the quiet period end up as a single write of the latest state
+		WriteBehindFlusher flusher = new WriteBehindFlusher(200, 10000, TimeUnit.MILLISECONDS);
+		final AtomicLong writes = new AtomicLong(), latest = new AtomicLong();
+		for (int i = 1; i <= 5; i++) {
+			final int state = i;
+			flusher.schedule("key", new WriteBehindFlusher.Write() {
+				@Override
+				public void write() throws IOException {
+					writes.incrementAndGet();
+					latest.set(state);
+				}
+			});
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (flusher.isPending("key") && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		Thread.sleep(400);
+		assertEquals(1, writes.get());
+		assertEquals(5, latest.get());
+		assertEquals(5, flusher.getRequested());
+		assertEquals(4, flusher.getCoalesced());
+		flusher.close();
+		
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/write-behind"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		ManagedKeyStore keystore = keystoreManager.createKeyStore("Delayed", "testpassword", StoreType.JKS);
+		RecordingMetrics metrics = new RecordingMetrics();
+		keystoreManager.setMetrics(metrics);
+		// nothing is written before the close
+		flusher = new WriteBehindFlusher(1, 1, TimeUnit.HOURS);
+		keystoreManager.setFlusher(flusher);
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("delayed", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		for (int i = 0; i < 5; i++)
+			keystore.set("certificate" + i, certificate);
+		assertEquals(0, metrics.getCount("Delayed", KeyStoreMetrics.Operation.SAVE));
+		assertNull(KeyStoreManagerImpl.getManager(target, "configuration.xml").getKeyStore("Delayed").getCertificate("certificate0"));
+		
+		// the close flushes the pending write
+		flusher.close();
+		assertEquals(1, metrics.getCount("Delayed", KeyStoreMetrics.Operation.SAVE));
+		ManagedKeyStore reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml").getKeyStore("Delayed");
+		for (int i = 0; i < 5; i++)
+			assertEquals(certificate, reopened.getCertificate("certificate" + i));
+		
+		// once closed, writes are no longer delayed
+		keystore.delete("certificate0");
+		assertEquals(2, metrics.getCount("Delayed", KeyStoreMetrics.Operation.SAVE));
+	}
+	
+	public void testContextCache() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/context"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Context", "testpassword", StoreType.JKS);
+		ManagedKeyStoreImpl keystore = keystoreManager.getKeyStore("Context");
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("context", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("server", pair.getPrivate(), new X509Certificate[] { certificate }, "testpassword");
+		
+		// an unchanged keystore reuses its context
+		long generation = keystore.getGeneration();
+		SSLContext context = keystore.newContext(SSLContextType.TLS);
+		assertSame(context, keystore.newContext(SSLContextType.TLS));
+		assertEquals(generation, keystore.getGeneration());
+		
+		// a modification starts a new generation and a new context
+		keystore.set("trusted", certificate);
+		assertTrue(keystore.getGeneration() != generation);
+		SSLContext modified = keystore.newContext(SSLContextType.TLS);
+		assertNotSame(context, modified);
+		assertSame(modified, keystore.newContext(SSLContextType.TLS));
+		
+		// so does a reload of a keystore that was changed by someone else
+		KeyStoreManagerImpl.getManager(target, "configuration.xml").getKeyStore("Context").delete("trusted");
+		generation = keystore.getGeneration();
+		assertTrue(keystore.reload());
+		assertTrue(keystore.getGeneration() != generation);
+		SSLContext reloaded = keystore.newContext(SSLContextType.TLS);
+		assertNotSame(modified, reloaded);
+		
+		// but a reload that finds nothing changed keeps the context
+		assertFalse(keystore.reload());
+		assertSame(reloaded, keystore.newContext(SSLContextType.TLS));
+	}
+	
+	public void testContextEviction() throws JAXBException, InterruptedException {
+		Marshaller marshaller = JAXBContextCache.getMarshaller(Evictable.class);
+		Unmarshaller unmarshaller = JAXBContextCache.getUnmarshaller(Evictable.class);
+		// reused on the same thread as long as it is in use
+		assertSame(marshaller, JAXBContextCache.getMarshaller(Evictable.class));
+		assertSame(unmarshaller, JAXBContextCache.getUnmarshaller(Evictable.class));
+		
+		WeakReference<JAXBContext> context = new WeakReference<JAXBContext>(JAXBContextCache.getContext(Evictable.class));
+		marshaller = null;
+		unmarshaller = null;
+		JAXBContextCache.evict(Evictable.class);
+		// the thread that used it does not keep the evicted context alive
+		for (int i = 0; i < 100 && context.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(context.get());
+		assertNotNull(JAXBContextCache.getMarshaller(Evictable.class));
+	}
+	
+	@XmlRootElement
+	public static class Evictable {
+		// no content
+	}
+	
+	public void testReloadDirty() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/reload-dirty"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Dirty", "testpassword", StoreType.JKS);
+		ManagedKeyStoreImpl keystore = keystoreManager.getKeyStore("Dirty");
+		keystore.setSaveOnChange(false);
+		
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("dirty", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		keystore.set("local", certificate);
+		assertTrue(keystore.isDirty());
+		
+		// someone else changes the keystore while we have unsaved changes, they are not wiped by a reload
+		ManagedKeyStoreImpl other = KeyStoreManagerImpl.getManager(target, "configuration.xml").getKeyStore("Dirty");
+		other.set("remote", certificate);
+		assertFalse(keystore.reload());
+		assertNotNull(keystore.getCertificate("local"));
+		assertTrue(keystore.isConflicted());
+		
+		// saving resolves the conflict in favour of the local changes
+		keystore.save();
+		assertFalse(keystore.isDirty());
+		assertFalse(keystore.isConflicted());
+		assertFalse(keystore.reload());
+		
+		// once clean, external changes are picked up again
+		other.set("another", certificate);
+		assertTrue(keystore.reload());
+		assertNotNull(keystore.getCertificate("another"));
+		assertNull(keystore.getCertificate("local"));
+	}
+	
+	public void testWatcher() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/watcher"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Watched", "testpassword", StoreType.JKS);
+		keystoreManager.createKeyStore("Unchanged", "testpassword", StoreType.JKS);
+		ManagedKeyStoreImpl watched = keystoreManager.getKeyStore("Watched");
+		ManagedKeyStoreImpl unchanged = keystoreManager.getKeyStore("Unchanged");
+		
+		final List<ManagedKeyStoreImpl> notified = new ArrayList<ManagedKeyStoreImpl>();
+		KeyStoreWatcher watcher = new KeyStoreWatcher(keystoreManager, 1, TimeUnit.HOURS);
+		watcher.addListener(new KeyStoreWatcher.Listener() {
+			@Override
+			public void reloaded(ManagedKeyStoreImpl keystore) {
+				notified.add(keystore);
+			}
+		});
+		try {
+			// nothing changed yet
+			assertEquals(0, watcher.check().size());
+			assertEquals(0, watcher.getReloaded());
+			
+			// another manager modifies one of the resources
+			KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+			X500Principal principal = SecurityUtils.createX500Principal("watched", null, null, null, null, null);
+			X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+			KeyStoreManagerImpl.getManager(target, "configuration.xml").getKeyStore("Watched").set("external", certificate);
+			
+			long generation = unchanged.getGeneration();
+			assertEquals(Arrays.asList(watched), watcher.check());
+			assertEquals(Arrays.asList(watched), notified);
+			assertEquals(certificate, watched.getCertificate("external"));
+			assertEquals(1, watcher.getReloaded());
+			// the other keystore was not reloaded
+			assertEquals(generation, unchanged.getGeneration());
+			
+			// the reloaded state is the new baseline
+			assertEquals(0, watcher.check().size());
+			assertEquals(1, watcher.getReloaded());
+			assertEquals(0, watcher.getFailed());
+		}
+		finally {
+			watcher.close();
+		}
+		
+		// the fingerprint of the content is stable and tells changed content apart
+		byte [] content = IOUtils.toBytes(ResourceUtils.toReadableContainer(watched.getConfiguration().getUri(), null));
+		byte [] modified = content.clone();
+		modified[modified.length - 1]++;
+		assertEquals(ResourceFingerprint.of(content), ResourceFingerprint.of(content.clone()));
+		assertFalse(ResourceFingerprint.of(content).equals(ResourceFingerprint.of(modified)));
+	}
+	
+	public void testPreload() throws URISyntaxException, KeyStoreException, IOException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/preload"), null);
+		KeyStoreManagerImpl creator = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		for (int i = 0; i < 3; i++)
+			creator.createKeyStore("preloaded" + i, "testpassword", StoreType.JKS);
+		
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		RecordingMetrics metrics = new RecordingMetrics();
+		keystoreManager.setMetrics(metrics);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			KeyStoreManagerImpl.Preload preload = keystoreManager.preload(Arrays.asList("preloaded0", "preloaded1", "preloaded0", "missing", "preloaded2"), executor);
+			assertFalse(preload.isSuccessful());
+			assertEquals(Arrays.asList("preloaded0", "preloaded1", "preloaded2"), new ArrayList<String>(preload.getKeyStores().keySet()));
+			assertEquals(1, preload.getFailures().size());
+			assertTrue(preload.getFailures().get("missing") instanceof IllegalArgumentException);
+			for (int i = 0; i < 3; i++)
+				assertEquals(1, metrics.getCount("preloaded" + i, KeyStoreMetrics.Operation.LOAD));
+			
+			// loaded keystores are handed out as they are
+			preload = keystoreManager.preload(executor);
+			assertTrue(preload.isSuccessful());
+			assertEquals(3, preload.getKeyStores().size());
+			for (int i = 0; i < 3; i++) {
+				assertSame(keystoreManager.getKeyStore("preloaded" + i), preload.getKeyStores().get("preloaded" + i));
+				assertEquals(1, metrics.getCount("preloaded" + i, KeyStoreMetrics.Operation.LOAD));
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	public void testStoreTypeDetection() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, JAXBException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/detect"), null);
+		KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X500Principal principal = SecurityUtils.createX500Principal("detect", null, null, null, null, null);
+		X509Certificate certificate = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		
+		// a pkcs12 named and configured as a jks and a jks named as a pkcs12 without a configured type
+		byte [] pkcs12 = newKeyStore(StoreType.PKCS12, certificate);
+		byte [] jks = newKeyStore(StoreType.JKS, certificate);
+		assertEquals(StoreType.PKCS12, KeyStoreManagerImpl.getStoreType(pkcs12));
+		assertEquals(StoreType.JKS, KeyStoreManagerImpl.getStoreType(jks));
+		assertNull(KeyStoreManagerImpl.getStoreType(new byte [] { 1, 2, 3, 4 }));
+		SafeResourceWriter.write((WritableResource) target.create("mislabeled.jks", "application/octet-stream"), pkcs12);
+		SafeResourceWriter.write((WritableResource) target.create("untyped.p12", "application/octet-stream"), jks);
+		
+		KeyStoreManagerConfiguration configuration = new KeyStoreManagerConfiguration();
+		KeyStoreConfiguration mislabeled = newKeyStoreConfiguration("Mislabeled");
+		mislabeled.setUri(new URI("memory:/test/detect/mislabeled.jks"));
+		configuration.putKeyStore(mislabeled);
+		KeyStoreConfiguration untyped = newKeyStoreConfiguration("Untyped");
+		untyped.setUri(new URI("memory:/test/detect/untyped.p12"));
+		untyped.setType(null);
+		configuration.putKeyStore(untyped);
+		configuration.marshal((WritableResource) target.create("configuration.xml", "application/xml"));
+		
+		// the detected type is used and remembered
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertEquals(certificate, keystoreManager.getKeyStore("Mislabeled").getCertificate("detect"));
+		assertEquals(StoreType.PKCS12, keystoreManager.getKeyStoreConfiguration("Mislabeled").getType());
+		assertEquals(certificate, keystoreManager.getKeyStore("Untyped").getCertificate("detect"));
+		assertEquals(StoreType.JKS, keystoreManager.getKeyStoreConfiguration("Untyped").getType());
+	}
+	
+	private static byte [] newKeyStore(StoreType type, X509Certificate certificate) throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		KeyStoreHandler handler = KeyStoreHandler.create("password", type);
+		handler.set("detect", certificate);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		handler.save(output, "password");
+		return output.toByteArray();
+	}
+	
+	public void testEntryCache() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/entries"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Cached", "testpassword", StoreType.JKS);
+		ManagedKeyStoreImpl keystore = keystoreManager.getKeyStore("Cached");
+		
+		X500Principal principal = SecurityUtils.createX500Principal("cached", null, null, null, null, null);
+		KeyPair original = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X509Certificate originalCertificate = BCSecurityUtils.generateSelfSignedCertificate(original, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		KeyPair rotated = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+		X509Certificate rotatedCertificate = BCSecurityUtils.generateSelfSignedCertificate(rotated, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		
+		keystore.set("key", original.getPrivate(), new X509Certificate[] { originalCertificate }, "keypassword");
+		assertEquals(original.getPrivate(), keystore.getPrivateKey("key"));
+		long hits = keystore.getCacheHits();
+		assertEquals(original.getPrivate(), keystore.getPrivateKey("key"));
+		assertEquals(originalCertificate, keystore.getCertificate("key"));
+		assertEquals(hits + 1, keystore.getCacheHits());
+		
+		// a rotated key is never served from the cache
+		keystore.set("key", rotated.getPrivate(), new X509Certificate[] { rotatedCertificate }, "keypassword");
+		assertEquals(rotated.getPrivate(), keystore.getPrivateKey("key"));
+		assertEquals(rotatedCertificate, keystore.getCertificate("key"));
+		assertEquals(rotatedCertificate, keystore.getChain("key")[0]);
+		
+		// neither is a deleted one
+		keystore.delete("key");
+		assertNull(keystore.getPrivateKey("key"));
+		assertNull(keystore.getCertificate("key"));
+		
+		// or one that was renamed
+		keystore.set("old", originalCertificate);
+		assertEquals(originalCertificate, keystore.getCertificate("old"));
+		keystore.rename("old", "new");
+		assertNull(keystore.getCertificate("old"));
+		assertEquals(originalCertificate, keystore.getCertificate("new"));
+	}
+	
+	public void testConcurrentReadWrite() throws URISyntaxException, KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException, NoSuchProviderException, InterruptedException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/read-write"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("Rotated", "testpassword", StoreType.JKS);
+		final ManagedKeyStoreImpl keystore = keystoreManager.getKeyStore("Rotated");
+		
+		final X509Certificate [] certificates = new X509Certificate[3];
+		for (int i = 0; i < certificates.length; i++) {
+			KeyPair pair = SecurityUtils.generateKeyPair(KeyPairType.RSA, 1024);
+			X500Principal principal = SecurityUtils.createX500Principal("rotated" + i, null, null, null, null, null);
+			certificates[i] = BCSecurityUtils.generateSelfSignedCertificate(pair, new Date(new Date().getTime() + 1000*60*60*24), principal, principal);
+		}
+		keystore.set("stable", certificates[0]);
+		keystore.set("rotating", certificates[1]);
+		
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> readers = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (writing.get()) {
+							// every read sees a consistent state: the stable entry and one of the rotated certificates
+							Map<String, X509Certificate> read = keystore.getCertificates();
+							if (!certificates[0].equals(read.get("stable")))
+								failures.add(new AssertionError("Missing the stable certificate in " + read.keySet()));
+							X509Certificate rotating = read.get("rotating");
+							if (!certificates[1].equals(rotating) && !certificates[2].equals(rotating))
+								failures.add(new AssertionError("Unexpected rotating certificate in " + read.keySet()));
+							if (keystore.getCertificate("rotating") == null)
+								failures.add(new AssertionError("Missing the rotating certificate"));
+						}
+					}
+					catch (Throwable e) {
+						failures.add(e);
+					}
+				}
+			});
+			reader.start();
+			readers.add(reader);
+		}
+		try {
+			for (int i = 0; i < 50; i++) {
+				keystore.set("rotating", certificates[1 + (i % 2)]);
+				keystore.set("temporary" + i, certificates[0]);
+				keystore.delete("temporary" + i);
+			}
+		}
+		finally {
+			writing.set(false);
+		}
+		for (Thread reader : readers)
+			reader.join();
+		assertEquals(failures.toString(), 0, failures.size());
+		assertEquals(certificates[2], keystore.getCertificate("rotating"));
+		assertEquals(2, keystore.getCertificates().size());
+	}
+	
+	public void testPasswordRoundTrip() throws URISyntaxException, JAXBException {
+		KeyStoreManagerConfiguration configuration = new KeyStoreManagerConfiguration();
+		KeyStoreConfiguration keystore = newKeyStoreConfiguration("Encrypted");
+		keystore.getKeyPasswords().put("key", "keypassword");
+		configuration.putKeyStore(keystore);
+		byte [] marshalled = marshal(configuration);
+		
+		// nothing is decrypted when reading
+		KeyStoreManagerConfiguration unmarshalled = KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(marshalled));
+		KeyStoreConfiguration read = unmarshalled.getKeyStore("Encrypted");
+		assertFalse(read.getCachedPassword().isDecrypted());
+		assertFalse(PasswordMap.getCached(read.getKeyPasswords(), "key").isDecrypted());
+		
+		// and unchanged passwords are written back with the same ciphertext
+		assertTrue(Arrays.equals(marshalled, marshal(unmarshalled)));
+		
+		// decrypted on first use, which does not change what is written either
+		assertEquals("password", read.getPassword());
+		assertEquals("keypassword", read.getKeyPasswords().get("key"));
+		assertTrue(read.getCachedPassword().isDecrypted());
+		assertTrue(PasswordMap.getCached(read.getKeyPasswords(), "key").isDecrypted());
+		assertTrue(Arrays.equals(marshalled, marshal(unmarshalled)));
+		
+		// a new password is encrypted again
+		read.setPassword("changed");
+		byte [] changed = marshal(unmarshalled);
+		assertFalse(Arrays.equals(marshalled, changed));
+		assertEquals("changed", KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(changed)).getKeyStore("Encrypted").getPassword());
+	}
+	
+	private static byte [] marshal(KeyStoreManagerConfiguration configuration) throws JAXBException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		configuration.marshal(output);
+		return output.toByteArray();
+	}
+	
+	public void testStreaming() throws URISyntaxException, JAXBException {
+		KeyStoreManagerConfiguration configuration = new KeyStoreManagerConfiguration();
+		for (int i = 0; i < 3; i++) {
+			KeyStoreConfiguration keystore = new KeyStoreConfiguration();
+			keystore.setAlias("keystore" + i);
+			keystore.setPassword("password" + i);
+			keystore.setUri(new URI("memory:/test/streaming/keystore" + i + ".jks"));
+			keystore.getKeyPasswords().put("key", "keypassword" + i);
+			configuration.getKeyStores().add(keystore);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		StreamingConfiguration.write(output, configuration);
+		byte [] content = output.toByteArray();
+		
+		assertEquals(Arrays.asList("keystore0", "keystore1", "keystore2"), StreamingConfiguration.listAliases(new ByteArrayInputStream(content)));
+		KeyStoreConfiguration keystore = StreamingConfiguration.getKeyStore(new ByteArrayInputStream(content), "keystore1");
+		assertEquals("password1", keystore.getPassword());
+		assertEquals("keypassword1", keystore.getKeyPasswords().get("key"));
+		
+		// the regular unmarshal reads what was streamed
+		KeyStoreManagerConfiguration unmarshalled = KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(content));
+		assertEquals(3, unmarshalled.getKeyStores().size());
+		assertEquals("password2", unmarshalled.getKeyStore("keystore2").getPassword());
+	}
+	
+	public void testStreamingSplit() throws URISyntaxException, KeyStoreException, IOException, JAXBException {
+		ManageableContainer<?> target = (ManageableContainer<?>) ResourceUtils.mkdir(new URI("memory:/test/streaming-split"), null);
+		KeyStoreManagerImpl keystoreManager = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		keystoreManager.createKeyStore("First", "testpassword", StoreType.JKS);
+		keystoreManager.createKeyStore("Second", "testpassword", StoreType.JKS);
+		keystoreManager.split();
+		
+		// the configuration as the manager holds it: the keystores are known but only the references are written
+		KeyStoreManagerConfiguration configuration = KeyStoreManagerConfiguration.unmarshal((ReadableResource) target.getChild("configuration.xml"));
+		assertEquals(2, configuration.getKeyStoreConfigurations().size());
+		for (String alias : keystoreManager.listKeystores())
+			configuration.putKeyStore(keystoreManager.getKeyStoreConfiguration(alias));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		StreamingConfiguration.write(output, configuration);
+		byte [] content = output.toByteArray();
+		assertTrue(new String(content, "UTF-8").indexOf("<uri>") == -1);
+		
+		KeyStoreManagerConfiguration streamed = KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(content));
+		assertEquals(0, streamed.getKeyStores().size());
+		assertEquals(2, streamed.getKeyStoreConfigurations().size());
+		assertEquals("First", streamed.getKeyStoreConfigurations().get(0).getAlias());
+		assertEquals(configuration.getKeyStoreConfigurations().get(1).getName(), streamed.getKeyStoreConfigurations().get(1).getName());
+		
+		// the manager reads what was streamed
+		SafeResourceWriter.write((WritableResource) target.getChild("configuration.xml"), content);
+		KeyStoreManagerImpl reopened = KeyStoreManagerImpl.getManager(target, "configuration.xml");
+		assertTrue(reopened.isSplit());
+		assertEquals(Arrays.asList("First", "Second"), reopened.listKeystores());
+		assertEquals("testpassword", reopened.getKeyStore("Second").getPassword());
+	}
+	
+	public void testAliasIndex() throws URISyntaxException, JAXBException {
+		KeyStoreManagerConfiguration configuration = new KeyStoreManagerConfiguration();
+		KeyStoreConfiguration first = newKeyStoreConfiguration("first");
+		KeyStoreConfiguration second = newKeyStoreConfiguration("second");
+		assertNull(configuration.putKeyStore(first));
+		assertNull(configuration.putKeyStore(second));
+		assertSame(first, configuration.getKeyStore("first"));
+		
+		// a rename moves the alias in the index
+		first.setAlias("renamed");
+		assertNull(configuration.getKeyStore("first"));
+		assertSame(first, configuration.getKeyStore("renamed"));
+		
+		// the first configuration with an alias wins, the duplicate takes over once it is renamed or removed
+		KeyStoreConfiguration duplicate = newKeyStoreConfiguration("duplicate");
+		configuration.getKeyStores().add(duplicate);
+		assertSame(duplicate, configuration.getKeyStore("duplicate"));
+		second.setAlias("duplicate");
+		assertSame(second, configuration.getKeyStore("duplicate"));
+		second.setAlias("second");
+		assertSame(duplicate, configuration.getKeyStore("duplicate"));
+		second.setAlias("duplicate");
+		assertSame(second, configuration.removeKeyStore("duplicate"));
+		assertSame(duplicate, configuration.getKeyStore("duplicate"));
+		assertEquals(2, configuration.getKeyStores().size());
+		
+		// a put replaces the indexed configuration in place
+		KeyStoreConfiguration replacement = newKeyStoreConfiguration("renamed");
+		assertSame(first, configuration.putKeyStore(replacement));
+		assertSame(replacement, configuration.getKeyStores().get(0));
+		assertSame(replacement, configuration.getKeyStore("renamed"));
+		// the replaced configuration no longer updates the index
+		first.setAlias("stale");
+		assertNull(configuration.getKeyStore("stale"));
+		
+		// after unmarshalling the list is indexed, including duplicates and later renames
+		configuration.getKeyStores().add(newKeyStoreConfiguration("duplicate"));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		configuration.marshal(output);
+		KeyStoreManagerConfiguration unmarshalled = KeyStoreManagerConfiguration.unmarshal(new ByteArrayInputStream(output.toByteArray()));
+		assertEquals(3, unmarshalled.getKeyStores().size());
+		assertSame(unmarshalled.getKeyStores().get(1), unmarshalled.getKeyStore("duplicate"));
+		assertSame(unmarshalled.getKeyStores().get(0), unmarshalled.getKeyStore("renamed"));
+		unmarshalled.getKeyStores().get(1).setAlias("other");
+		assertSame(unmarshalled.getKeyStores().get(1), unmarshalled.getKeyStore("other"));
+		assertSame(unmarshalled.getKeyStores().get(2), unmarshalled.getKeyStore("duplicate"));
+	}
+	
+	/**
+	 * Counts the timed operations and sums the bytes written per alias
+	 */
+	private static class RecordingMetrics implements KeyStoreMetrics {
+		
+		private ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+		private ConcurrentMap<String, AtomicLong> written = new ConcurrentHashMap<String, AtomicLong>();
+		
+		@Override
+		public void timed(String alias, Operation operation, long nanos, boolean succeeded) {
+			add(counts, alias + ":" + operation, 1);
+		}
+		@Override
+		public void written(String alias, Operation operation, long bytes) {
+			add(written, alias + ":" + operation, bytes);
+		}
+		@Override
+		public void cached(String alias, boolean hit) {
+			// not recorded
+		}
+		
+		private static void add(ConcurrentMap<String, AtomicLong> values, String key, long amount) {
+			values.putIfAbsent(key, new AtomicLong());
+			values.get(key).addAndGet(amount);
+		}
+		
+		public long getCount(String alias, Operation operation) {
+			AtomicLong value = counts.get(alias + ":" + operation);
+			return value == null ? 0 : value.get();
+		}
+		
+		public long getWritten(String alias, Operation operation) {
+			AtomicLong value = written.get(alias + ":" + operation);
+			return value == null ? 0 : value.get();
+		}
+	}
+	
+	private static KeyStoreConfiguration newKeyStoreConfiguration(String alias) throws URISyntaxException {
+		KeyStoreConfiguration keystore = new KeyStoreConfiguration();
+		keystore.setAlias(alias);
+		keystore.setPassword("password");
+		keystore.setUri(new URI("memory:/test/index/" + alias + ".jks"));
+		keystore.setType(StoreType.JKS);
+		return keystore;
+	}
 
 }